@@ -0,0 +1,153 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Bulk asset import through /assetImports instead of one postAssets call
+ * per asset.
+ *
+ * The spreadsheet is streamed from disk as the Filedata part of a
+ * multipart POST with chunked transfer encoding, so the body is never held
+ * in memory. The server parses the spreadsheet before it answers the POST,
+ * so the client reads the /assetImports/{id}/assetTypes preview once and
+ * commits with /assetImports/{id}/commit. Heap use is sampled
+ * while the file goes out so a run shows whether it really stayed flat.
+ *
+ * Usage: AssetImportClient server loginfile file [assetTypeName [idPropertyKey]]
+ */
+public class AssetImportClient
+{
+	private static final int CHUNK = 64 * 1024;
+
+	private static final String BOUNDARY = "----VisionAssetImport" + Long.toHexString(System.nanoTime());
+
+	private static VisionClient client;
+
+	private static long peakHeap;
+
+	public static void main(String[] args)
+	{
+		if (args.length < 3)
+		{
+			System.out.println("Usage: AssetImportClient server loginfile file [assetTypeName [idPropertyKey]]");
+			return;
+		}
+		File file = new File(args[2]);
+		String assetTypeName = args.length > 3 ? args[3] : file.getName().replaceFirst("\\.[^.]*$", "");
+		String idPropertyKey = args.length > 4 ? args[4] : null;
+
+		try
+		{
+			client = new VisionClient(args[0]);
+			client.login(args[1]);
+			String importId = upload(file);
+			System.out.println("Import id: " + importId);
+			preview(importId);
+			commit(importId, assetTypeName, idPropertyKey);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Streams file to POST /assetImports and returns the id of the created
+	 * import.
+	 */
+	public static String upload(File file) throws IOException
+	{
+		System.out.println("About to upload\nURL: " + client.getServer() + "/assetImports\nfile: " + file + " (" + file.length() + " bytes)");
+		long start = System.nanoTime();
+		peakHeap = usedHeap();
+
+		VisionClient.Transfer transfer = client.transfer("POST", "/assetImports");
+		try
+		{
+			transfer.setHeader("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+			OutputStream out = transfer.body(CHUNK);
+			InputStream in = new FileInputStream(file);
+			long sent = 0;
+			try
+			{
+				out.write(("--" + BOUNDARY + "\r\n"
+						+ "Content-Disposition: form-data; name=\"Filename\"\r\n\r\n"
+						+ file.getName() + "\r\n"
+						+ "--" + BOUNDARY + "\r\n"
+						+ "Content-Disposition: form-data; name=\"Filedata\"; filename=\"" + file.getName() + "\"\r\n"
+						+ "Content-Type: application/octet-stream\r\n\r\n").getBytes("UTF-8"));
+				byte[] buf = new byte[CHUNK];
+				int n;
+				long nextReport = 16L * 1024 * 1024;
+				while ((n = in.read(buf)) > 0)
+				{
+					out.write(buf, 0, n);
+					sent += n;
+					peakHeap = Math.max(peakHeap, usedHeap());
+					if (sent >= nextReport)
+					{
+						report("uploaded", sent, start);
+						nextReport += 16L * 1024 * 1024;
+					}
+				}
+				out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes("UTF-8"));
+			}
+			finally
+			{
+				in.close();
+				out.close();
+			}
+			report("uploaded", sent, start);
+
+			String response = transfer.text();
+			System.out.println("Server response:\n'" + response + "'");
+			return VisionClient.parse(response, "AssetImportClient.upload").getDocumentElement().getAttribute("id");
+		}
+		finally
+		{
+			transfer.close();
+		}
+	}
+
+	/**
+	 * Prints the asset types the server found in the import. The upload
+	 * only returns once the spreadsheet has been parsed, so this is a plain
+	 * read rather than a wait.
+	 */
+	public static void preview(String importId) throws IOException
+	{
+		System.out.println("Import preview:\n'" + client.get("/assetImports/" + importId + "/assetTypes") + "'");
+	}
+
+	public static void commit(String importId, String assetTypeName, String idPropertyKey) throws IOException
+	{
+		String path = "/assetImports/" + importId + "/commit";
+		String content = "<commit assetTypeName=\"" + escape(assetTypeName) + "\""
+				+ (idPropertyKey != null ? " idPropertyKey=\"" + escape(idPropertyKey) + "\"" : "") + "/>";
+		System.out.println("About to post\nURL: " + client.getServer() + path + "\ncontent: " + content);
+		long start = System.nanoTime();
+		System.out.println("Server response:\n'" + client.post(path, content) + "'");
+		System.out.println("Commit took " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	private static void report(String what, long bytes, long start)
+	{
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(what + " " + bytes + " bytes, "
+				+ (seconds > 0 ? (long) (bytes / seconds) : 0) + " bytes/s, heap used "
+				+ usedHeap() / 1024 + " KB (peak " + peakHeap / 1024 + " KB)");
+	}
+
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static String escape(String s)
+	{
+		return s.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;");
+	}
+}
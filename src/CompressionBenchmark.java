@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares plain, deflate and gzip transport against an in-process
+ * StandInServer. Each mode runs the same mix for the same time: the big
+ * lists (/tags, /assets, /events, parsed as they stream in) and a bulk
+ * asset POST. For each mode it reports throughput, bytes on the wire per
+ * request and the compression ratio, and the CPU both ends spent per
+ * request. Loopback has no bandwidth limit, so the transfer time on the
+ * WAN link is estimated from the wire bytes and the given link speed.
+ *
+ * Usage: CompressionBenchmark [seconds per mode] [users] [items] [link Mbit/s]
+ */
+public class CompressionBenchmark
+{
+	private static final String[] MODES = { "identity", ContentCoding.DEFLATE, ContentCoding.GZIP };
+
+	private static final String[] GETS = { "/tags", "/assets", "/events" };
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws Exception
+	{
+		double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 10;
+		int users = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int items = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		double linkMbps = args.length > 3 ? Double.parseDouble(args[3]) : 10;
+
+		StandInServer server = new StandInServer(0, items, users);
+		server.start();
+		String url = "http://localhost:" + server.getPort();
+		String bulk = bulkAsset(200);
+		try
+		{
+			// one untimed pass so class loading and the codec pools don't count
+			run(url, "gzip", 1, 0.5, bulk);
+			run(url, "identity", 1, 0.5, bulk);
+
+			System.out.println(String.format("%-9s %8s %10s %10s %7s %12s %12s %12s",
+					"mode", "req/s", "wire KB", "plain KB", "ratio", "client us", "server us", "link ms"));
+			for (String mode : MODES)
+			{
+				server.resetCounters();
+				long[] run = run(url, mode, users, seconds, bulk);
+				long count = Math.max(1, run[0]);
+				double perRequestWire = (server.wireIn.get() + server.wireOut.get()) / (double) count;
+				double perRequestPlain = (server.plainIn.get() + server.plainOut.get()) / (double) count;
+				System.out.println(String.format("%-9s %8.1f %10.1f %10.1f %6.1fx %12.0f %12.0f %12.1f",
+						mode, run[0] * 1000.0 / run[2], perRequestWire / 1024, perRequestPlain / 1024,
+						perRequestPlain / Math.max(1, perRequestWire),
+						run[1] / 1000.0 / count, server.cpuNanos.get() / 1000.0 / count,
+						perRequestWire * 8 / (linkMbps * 1000)));
+			}
+			System.out.println("link ms: transfer time per request at " + linkMbps + " Mbit/s; codecs created: " + ContentCoding.codecsCreated());
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+
+	/** Returns requests completed, client CPU nanos and elapsed millis. */
+	private static long[] run(final String url, final String mode, int users, double seconds, final String bulk)
+			throws InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + (long) (seconds * 1000);
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong cpu = new AtomicLong();
+		List<Thread> workers = new ArrayList<Thread>();
+		long start = System.currentTimeMillis();
+		for (int u = 0; u < users; u++)
+		{
+			Thread t = new Thread("bench-" + mode + "-" + u)
+			{
+				public void run()
+				{
+					long cpuStart = threads.getCurrentThreadCpuTime();
+					VisionClient client = new VisionClient(url);
+					client.setAcceptEncoding(mode);
+					client.setRequestEncoding("identity".equals(mode) ? null : mode);
+					try
+					{
+						client.loginWith("<login username=\"admin\" password=\"admin\"/>");
+						for (int i = 0; System.currentTimeMillis() < deadline; i++)
+						{
+							if (i % 4 == 3)
+							{
+								client.post("/assets", bulk);
+							}
+							else
+							{
+								client.getDocument(GETS[i % 4]);
+							}
+							count.incrementAndGet();
+						}
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+					cpu.addAndGet(threads.getCurrentThreadCpuTime() - cpuStart);
+				}
+			};
+			t.start();
+			workers.add(t);
+		}
+		for (Thread t : workers)
+		{
+			t.join();
+		}
+		return new long[] { count.get(), cpu.get(), Math.max(1, System.currentTimeMillis() - start) };
+	}
+
+	/** An asset with many properties, standing in for a bulk upload body. */
+	private static String bulkAsset(int properties)
+	{
+		StringBuffer xml = new StringBuffer("<asset assetTypeId=\"4d487db33b4a313bc485315f\">");
+		for (int i = 0; i < properties; i++)
+		{
+			xml.append("<property id=\"4d487db33b4a313bc485315f,1,").append(i).append("\" value=\"IVPump serial ")
+					.append(100000 + i * 7).append("\" type=\"text\"/>");
+		}
+		return xml.append("</asset>").toString();
+	}
+}
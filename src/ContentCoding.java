@@ -0,0 +1,362 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * gzip and deflate Content-Encoding for VisionClient and StandInServer.
+ *
+ * GZIPInputStream and GZIPOutputStream allocate a new Inflater or Deflater
+ * (and its native zlib state) for every body, so the gzip framing is done
+ * here instead, around codecs taken from small pools. Decoding is a stream
+ * over the response, so a parser reading it never sees the compressed
+ * bytes or a fully decoded copy; closing the stream returns its Inflater.
+ */
+public class ContentCoding
+{
+	public static final String GZIP = "gzip";
+
+	public static final String DEFLATE = "deflate";
+
+	/** What VisionClient offers in Accept-Encoding by default. */
+	public static final String ACCEPT = GZIP + ", " + DEFLATE;
+
+	private static final int POOL_LIMIT = 64;
+
+	private static final int LEVEL = Integer.getInteger("vision.compressionLevel", Deflater.DEFAULT_COMPRESSION);
+
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private static final Queue<Inflater> rawInflaters = new ConcurrentLinkedQueue<Inflater>();
+
+	private static final Queue<Inflater> zlibInflaters = new ConcurrentLinkedQueue<Inflater>();
+
+	private static final Queue<Deflater> rawDeflaters = new ConcurrentLinkedQueue<Deflater>();
+
+	private static final Queue<Deflater> zlibDeflaters = new ConcurrentLinkedQueue<Deflater>();
+
+	private static final AtomicInteger created = new AtomicInteger();
+
+	/** Returns true for the encodings this class can encode and decode. */
+	public static boolean supports(String encoding)
+	{
+		return GZIP.equalsIgnoreCase(encoding) || DEFLATE.equalsIgnoreCase(encoding);
+	}
+
+	/**
+	 * Picks the response encoding for an Accept-Encoding header: gzip, then
+	 * deflate, or null for identity. Codings refused with q=0 are skipped.
+	 */
+	public static String choose(String acceptEncoding)
+	{
+		if (acceptEncoding == null)
+		{
+			return null;
+		}
+		boolean gzip = false;
+		boolean deflate = false;
+		for (String part : acceptEncoding.split(","))
+		{
+			String[] params = part.trim().split(";");
+			String coding = params[0].trim();
+			boolean refused = false;
+			for (int i = 1; i < params.length; i++)
+			{
+				String param = params[i].trim();
+				if (param.startsWith("q=") && Double.parseDouble(param.substring(2)) == 0)
+				{
+					refused = true;
+				}
+			}
+			if (!refused && (GZIP.equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding)))
+			{
+				gzip = true;
+			}
+			else if (!refused && DEFLATE.equalsIgnoreCase(coding))
+			{
+				deflate = true;
+			}
+		}
+		return gzip ? GZIP : (deflate ? DEFLATE : null);
+	}
+
+	/**
+	 * Wraps a body received with the given Content-Encoding so that reading
+	 * it yields the decoded bytes. Identity (null or empty) returns in.
+	 */
+	public static InputStream decode(InputStream in, String encoding) throws IOException
+	{
+		if (in == null || encoding == null || encoding.length() == 0 || "identity".equalsIgnoreCase(encoding))
+		{
+			return in;
+		}
+		if (GZIP.equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding))
+		{
+			return new GzipStream(in);
+		}
+		if (DEFLATE.equalsIgnoreCase(encoding))
+		{
+			return new PooledInflaterStream(in, take(zlibInflaters, false));
+		}
+		throw new IOException("Unsupported Content-Encoding: " + encoding);
+	}
+
+	/** Compresses a whole body with a pooled Deflater. */
+	public static byte[] encode(byte[] body, String encoding)
+	{
+		boolean gzip = GZIP.equalsIgnoreCase(encoding);
+		Queue<Deflater> pool = gzip ? rawDeflaters : zlibDeflaters;
+		Deflater deflater = pool.poll();
+		if (deflater == null)
+		{
+			deflater = new Deflater(LEVEL, gzip);
+			created.incrementAndGet();
+		}
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+			if (gzip)
+			{
+				out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+			}
+			deflater.setInput(body);
+			deflater.finish();
+			byte[] buf = new byte[8192];
+			while (!deflater.finished())
+			{
+				int n = deflater.deflate(buf);
+				out.write(buf, 0, n);
+			}
+			if (gzip)
+			{
+				CRC32 crc = new CRC32();
+				crc.update(body, 0, body.length);
+				writeIntLE(out, (int) crc.getValue());
+				writeIntLE(out, body.length);
+			}
+			return out.toByteArray();
+		}
+		finally
+		{
+			deflater.reset();
+			give(pool, deflater);
+		}
+	}
+
+	/** Native codecs created so far; flat once the pools are warm. */
+	public static int codecsCreated()
+	{
+		return created.get();
+	}
+
+	private static Inflater take(Queue<Inflater> pool, boolean nowrap)
+	{
+		Inflater inflater = pool.poll();
+		if (inflater == null)
+		{
+			inflater = new Inflater(nowrap);
+			created.incrementAndGet();
+		}
+		return inflater;
+	}
+
+	private static <T> void give(Queue<T> pool, T codec)
+	{
+		// the size check races, which only lets the pool run a little over
+		if (pool.size() < POOL_LIMIT)
+		{
+			pool.offer(codec);
+		}
+		else if (codec instanceof Inflater)
+		{
+			((Inflater) codec).end();
+		}
+		else
+		{
+			((Deflater) codec).end();
+		}
+	}
+
+	private static void writeIntLE(ByteArrayOutputStream out, int value)
+	{
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+
+	/** Inflates from a pooled Inflater and hands it back on close. */
+	static class PooledInflaterStream extends InflaterInputStream
+	{
+		private final boolean nowrap;
+
+		private boolean closed;
+
+		PooledInflaterStream(InputStream in, Inflater inflater)
+		{
+			this(in, inflater, false);
+		}
+
+		PooledInflaterStream(InputStream in, Inflater inflater, boolean nowrap)
+		{
+			super(in, inflater, 8192);
+			this.nowrap = nowrap;
+		}
+
+		public void close() throws IOException
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				inf.reset();
+				give(nowrap ? rawInflaters : zlibInflaters, inf);
+			}
+		}
+	}
+
+	/**
+	 * A single-member gzip body: the header is read up front, the deflate
+	 * data goes through a pooled raw Inflater, and the CRC and length in the
+	 * trailer are checked at the end.
+	 */
+	static class GzipStream extends PooledInflaterStream
+	{
+		private final CRC32 crc = new CRC32();
+
+		private boolean trailerChecked;
+
+		GzipStream(InputStream in) throws IOException
+		{
+			super(in, take(rawInflaters, true), true);
+			try
+			{
+				readHeader();
+			}
+			catch (IOException e)
+			{
+				close();
+				throw e;
+			}
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (trailerChecked)
+			{
+				return -1;
+			}
+			int n = super.read(b, off, len);
+			if (n > 0)
+			{
+				crc.update(b, off, n);
+			}
+			else if (n < 0)
+			{
+				checkTrailer();
+			}
+			return n;
+		}
+
+		private void readHeader() throws IOException
+		{
+			if (readByte() != 0x1f || readByte() != 0x8b)
+			{
+				throw new IOException("Not in gzip format");
+			}
+			if (readByte() != Deflater.DEFLATED)
+			{
+				throw new IOException("Unsupported gzip compression method");
+			}
+			int flags = readByte();
+			for (int i = 0; i < 6; i++)
+			{
+				readByte(); // mtime, xfl, os
+			}
+			if ((flags & 4) != 0)
+			{
+				int extra = readByte() | (readByte() << 8);
+				for (int i = 0; i < extra; i++)
+				{
+					readByte();
+				}
+			}
+			if ((flags & 8) != 0)
+			{
+				while (readByte() != 0)
+				{
+					// file name
+				}
+			}
+			if ((flags & 16) != 0)
+			{
+				while (readByte() != 0)
+				{
+					// comment
+				}
+			}
+			if ((flags & 2) != 0)
+			{
+				readByte();
+				readByte();
+			}
+		}
+
+		/**
+		 * The trailer starts in whatever input the Inflater did not consume
+		 * and may continue in the underlying stream.
+		 */
+		private void checkTrailer() throws IOException
+		{
+			trailerChecked = true;
+			int remaining = inf.getRemaining();
+			byte[] trailer = new byte[8];
+			int have = Math.min(remaining, 8);
+			System.arraycopy(buf, len - remaining, trailer, 0, have);
+			while (have < 8)
+			{
+				int n = in.read(trailer, have, 8 - have);
+				if (n < 0)
+				{
+					throw new EOFException("Truncated gzip trailer");
+				}
+				have += n;
+			}
+			long expectedCrc = readIntLE(trailer, 0) & 0xffffffffL;
+			long expectedSize = readIntLE(trailer, 4) & 0xffffffffL;
+			if (expectedCrc != crc.getValue() || expectedSize != (inf.getBytesWritten() & 0xffffffffL))
+			{
+				throw new IOException("Corrupt gzip body: CRC or length mismatch");
+			}
+		}
+
+		private int readByte() throws IOException
+		{
+			int b = in.read();
+			if (b < 0)
+			{
+				throw new EOFException("Truncated gzip header");
+			}
+			return b;
+		}
+
+		private static int readIntLE(byte[] b, int off)
+		{
+			return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+		}
+	}
+}
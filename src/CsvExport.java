@@ -0,0 +1,348 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads /export/csv/:entity-kw straight to disk.
+ *
+ * The response body is handed to FileChannel.transferFrom so it never goes
+ * through a String or a readLine loop. With gzip on, gzip is only asked
+ * for: the file is named after what actually came back, entity.csv.gz when
+ * the response says Content-Encoding: gzip (the bytes are stored as-is) and
+ * entity.csv when the server sent plain CSV.
+ *
+ * A download goes to entity.csv.part and is renamed into place only once it
+ * is complete, so an export from an earlier run is never mistaken for a
+ * partial one. The response's ETag (or Last-Modified) and its encoding are
+ * kept next to the part file; a rerun resumes with Range plus If-Range and
+ * only appends when the server answers 206 in the same encoding from exactly
+ * where the part file ends. Anything else (no validator, a changed export,
+ * a different range) starts the download again from zero.
+ *
+ * The Vision server's own export route sends neither ETag nor Last-Modified
+ * and ignores Range, so against it no part file is ever kept and every run
+ * downloads the whole export; resuming only happens behind a server or proxy
+ * that supplies a validator and honours ranges.
+ *
+ * The progress line shows, per entity, the bytes on disk and the rate of the
+ * bytes received in this run; bytes resumed from an earlier run count toward
+ * the former only.
+ *
+ * Usage: CsvExport server loginfile [outdir] [gzip|plain] entity...
+ * Entities are the export-service keywords: assets, asset-types, events,
+ * event-rules, zones, zone-groupings.
+ */
+public class CsvExport
+{
+	private static final long CHUNK = 8L * 1024 * 1024;
+
+	private static VisionClient client;
+
+	private static final Map<String, Progress> progress = new LinkedHashMap<String, Progress>();
+
+	/** Bytes on disk and bytes received in this run for one entity. */
+	public static class Progress
+	{
+		final AtomicLong onDisk = new AtomicLong();
+
+		final AtomicLong received = new AtomicLong();
+
+		volatile long started;
+
+		volatile long finished;
+
+		/** Rate of the bytes received in this run, from the first body byte on. */
+		long bytesPerSecond()
+		{
+			long from = started;
+			if (from == 0)
+			{
+				return 0;
+			}
+			long to = finished != 0 ? finished : System.nanoTime();
+			return to > from ? (long) (received.get() * 1e9 / (to - from)) : 0;
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.out.println("Usage: CsvExport server loginfile [outdir] [gzip|plain] entity...");
+			return;
+		}
+		File outDir = new File(".");
+		boolean gzip = true;
+		List<String> entities = new LinkedList<String>();
+		if (args.length > 2) outDir = new File(args[2]);
+		if (args.length > 3) gzip = !"plain".equals(args[3]);
+		for (int i = 4; i < args.length; i++)
+		{
+			entities.add(args[i]);
+		}
+		if (entities.isEmpty())
+		{
+			entities.add("assets");
+		}
+
+		client = new VisionClient(args[0]);
+		client.login(args[1]);
+		exportAll(entities, outDir, gzip);
+	}
+
+	/**
+	 * Exports every entity type in parallel, one connection each, and prints
+	 * per-entity bytes and bytes/s once a second until all are done.
+	 */
+	public static void exportAll(List<String> entities, final File outDir, final boolean gzip)
+	{
+		if (entities.isEmpty())
+		{
+			System.out.println("Nothing to export");
+			return;
+		}
+		outDir.mkdirs();
+		synchronized (progress)
+		{
+			progress.clear();
+			for (String entity : entities)
+			{
+				progress.put(entity, new Progress());
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(entities.size(), 4));
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		final long start = System.nanoTime();
+		reporter.scheduleAtFixedRate(new Runnable()
+		{
+			public void run()
+			{
+				printProgress(start);
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+
+		List<Future<File>> results = new LinkedList<Future<File>>();
+		for (final String entity : entities)
+		{
+			results.add(pool.submit(new Callable<File>()
+			{
+				public File call() throws IOException
+				{
+					return exportEntity(entity, outDir, gzip, progress.get(entity));
+				}
+			}));
+		}
+		for (int i = 0; i < results.size(); i++)
+		{
+			try
+			{
+				File file = results.get(i).get();
+				System.out.println("Exported " + entities.get(i) + " to " + file + " (" + file.length() + " bytes)");
+			}
+			catch (Exception e)
+			{
+				System.out.println("Export of " + entities.get(i) + " failed");
+				e.printStackTrace();
+			}
+		}
+		pool.shutdown();
+		reporter.shutdownNow();
+		printProgress(start);
+	}
+
+	/**
+	 * Streams one export into outDir/entity.csv (or .csv.gz if it came gzipped)
+	 * by way of a .part file, resuming an interrupted download when the server
+	 * can prove it is still the same export.
+	 */
+	public static File exportEntity(String entity, File outDir, boolean gzip, Progress counter) throws IOException
+	{
+		File part = new File(outDir, entity + ".csv.part");
+		File validatorFile = new File(outDir, entity + ".csv.part.validator");
+		String[] saved = readValidator(validatorFile);
+		long existing = part.exists() && saved != null ? part.length() : 0;
+		if (existing == 0)
+		{
+			part.delete();
+			validatorFile.delete();
+		}
+
+		VisionClient.Transfer transfer = open(entity, gzip, existing, existing > 0 ? saved[0] : null);
+		RandomAccessFile raf = null;
+		ReadableByteChannel in = null;
+		try
+		{
+			int code = transfer.status();
+			if (existing > 0 && code == 200)
+			{
+				// If-Range failed: the export changed, and this is all of the new one
+				existing = 0;
+			}
+			else if (existing > 0 && !(code == 206 && startsAt(transfer, existing) && saved[1].equals(encodingOf(transfer))))
+			{
+				System.out.println("Cannot resume " + entity + " (HTTP " + code + "), starting again");
+				transfer.close();
+				existing = 0;
+				transfer = open(entity, gzip, 0, null);
+				code = transfer.status();
+			}
+			if (code != 200 && code != 206)
+			{
+				throw new IOException("Export of " + entity + " returned HTTP " + code);
+			}
+			String encoding = encodingOf(transfer);
+			if (!"gzip".equals(encoding) && !"identity".equals(encoding))
+			{
+				throw new IOException("Export of " + entity + " came with Content-Encoding " + encoding);
+			}
+			File target = new File(outDir, entity + ("gzip".equals(encoding) ? ".csv.gz" : ".csv"));
+			if (existing == 0)
+			{
+				writeValidator(validatorFile, validatorOf(transfer), encoding);
+			}
+			if (gzip && !"gzip".equals(encoding))
+			{
+				System.out.println("Server sent " + entity + " uncompressed, saving as " + target.getName());
+			}
+
+			long position = existing;
+			raf = new RandomAccessFile(part, "rw");
+			FileChannel out = raf.getChannel();
+			out.truncate(position);
+			counter.onDisk.set(position);
+
+			in = Channels.newChannel(transfer.rawStream());
+			counter.started = System.nanoTime();
+			long n;
+			while ((n = out.transferFrom(in, position, CHUNK)) > 0)
+			{
+				position += n;
+				counter.onDisk.set(position);
+				counter.received.addAndGet(n);
+			}
+			long expected = transfer.contentLength();
+			if (expected >= 0 && position != existing + expected)
+			{
+				throw new IOException("Export of " + entity + " ended at " + position + " of " + (existing + expected)
+						+ " bytes; run again to resume");
+			}
+			out.force(false);
+			raf.close();
+			raf = null;
+			Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			validatorFile.delete();
+			return target;
+		}
+		finally
+		{
+			if (counter.started != 0) counter.finished = System.nanoTime();
+			if (in != null) in.close();
+			if (raf != null) raf.close();
+			transfer.close();
+		}
+	}
+
+	/** The body is stored as it comes, so only gzip (or nothing) is asked for. */
+	private static VisionClient.Transfer open(String entity, boolean gzip, long existing, String validator) throws IOException
+	{
+		VisionClient.Transfer transfer = client.transfer("GET", "/export/csv/" + entity);
+		transfer.setHeader("Accept-Encoding", gzip ? "gzip" : "identity");
+		if (existing > 0)
+		{
+			transfer.setHeader("Range", "bytes=" + existing + "-");
+			transfer.setHeader("If-Range", validator);
+		}
+		return transfer;
+	}
+
+	/** True if a 206 carries the bytes that follow what we already have. */
+	private static boolean startsAt(VisionClient.Transfer transfer, long existing) throws IOException
+	{
+		String range = transfer.header("Content-Range");
+		return range != null && range.trim().startsWith("bytes " + existing + "-");
+	}
+
+	/** The response's Content-Encoding, lower-cased, identity if there is none. */
+	private static String encodingOf(VisionClient.Transfer transfer) throws IOException
+	{
+		String encoding = transfer.contentEncoding();
+		return encoding == null ? "identity" : encoding.trim().toLowerCase();
+	}
+
+	/**
+	 * A strong ETag, else Last-Modified, else null; weak ETags may not be
+	 * used in If-Range.
+	 */
+	private static String validatorOf(VisionClient.Transfer transfer) throws IOException
+	{
+		String etag = transfer.header("ETag");
+		if (etag != null && !etag.startsWith("W/"))
+		{
+			return etag;
+		}
+		return transfer.header("Last-Modified");
+	}
+
+	/** The validator and encoding saved with a part file, or null. */
+	private static String[] readValidator(File file) throws IOException
+	{
+		if (!file.exists())
+		{
+			return null;
+		}
+		String[] lines = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).split("\n");
+		if (lines.length < 2 || lines[0].trim().length() == 0)
+		{
+			return null;
+		}
+		return new String[] { lines[0].trim(), lines[1].trim() };
+	}
+
+	/** Without a validator the part file can't be resumed, so none is kept. */
+	private static void writeValidator(File file, String validator, String encoding) throws IOException
+	{
+		if (validator == null)
+		{
+			file.delete();
+			return;
+		}
+		Files.write(file.toPath(), (validator + "\n" + encoding + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void printProgress(long start)
+	{
+		double seconds = (System.nanoTime() - start) / 1e9;
+		StringBuffer line = new StringBuffer();
+		long received = 0;
+		synchronized (progress)
+		{
+			for (Map.Entry<String, Progress> entry : progress.entrySet())
+			{
+				Progress p = entry.getValue();
+				received += p.received.get();
+				line.append(entry.getKey()).append('=').append(p.onDisk.get())
+						.append(" (").append(p.bytesPerSecond()).append(" B/s) ");
+			}
+		}
+		line.append("received=").append(received).append(" bytes/s=").append(seconds > 0 ? (long) (received / seconds) : 0);
+		System.out.println(line);
+	}
+}
@@ -0,0 +1,464 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Element;
+
+/**
+ * Runs the Loop1.jmx scenario (log in, create an asset type once, then per
+ * iteration create an asset and bind the next tag id to it) from several
+ * JVMs at once.
+ *
+ * A coordinator listens on a socket and waits for its workers. Each
+ * worker is handed a share of the virtual users and its own block of the
+ * asset and tag counters, sets up its session and asset type, and reports
+ * ready. The coordinator then gives every worker the same start time, and
+ * when they finish merges their per-label latency histograms into one
+ * report.
+ *
+ * Usage:
+ *   DistributedLoad coordinator [address:]port workers users iterations server loginfile [assetStart tagStart]
+ *   DistributedLoad worker host port
+ *   DistributedLoad local workers users iterations server loginfile [assetStart tagStart]
+ * The coordinator listens on every interface unless given an address.
+ * "local" starts the coordinator on loopback and forks the workers as
+ * child JVMs on this host. Every worker needs at least one user.
+ */
+public class DistributedLoad
+{
+	private static final int READY = 1;
+
+	private static final int START = 2;
+
+	private static final int RESULT = 3;
+
+	private static final long START_DELAY_MILLIS = 2000;
+
+	/** What one worker is asked to do. */
+	static class Assignment
+	{
+		String server;
+		String loginFile;
+		int users;
+		long assetFrom;
+		long tagFrom;
+		long iterations;
+
+		void writeTo(DataOutputStream out) throws IOException
+		{
+			out.writeUTF(server);
+			out.writeUTF(loginFile);
+			out.writeInt(users);
+			out.writeLong(assetFrom);
+			out.writeLong(tagFrom);
+			out.writeLong(iterations);
+		}
+
+		static Assignment readFrom(DataInputStream in) throws IOException
+		{
+			Assignment a = new Assignment();
+			a.server = in.readUTF();
+			a.loginFile = in.readUTF();
+			a.users = in.readInt();
+			a.assetFrom = in.readLong();
+			a.tagFrom = in.readLong();
+			a.iterations = in.readLong();
+			return a;
+		}
+	}
+
+	/** Per-label results, as recorded by a worker and merged by the coordinator. */
+	static class Results
+	{
+		final Map<String, LatencyHistogram> latency = new HashMap<String, LatencyHistogram>();
+		final Map<String, Long> errors = new HashMap<String, Long>();
+		long elapsedMillis;
+
+		synchronized void record(String label, long millis, boolean error)
+		{
+			LatencyHistogram histogram = latency.get(label);
+			if (histogram == null)
+			{
+				histogram = new LatencyHistogram();
+				latency.put(label, histogram);
+			}
+			histogram.record(millis);
+			if (error)
+			{
+				Long count = errors.get(label);
+				errors.put(label, count == null ? 1 : count + 1);
+			}
+		}
+
+		synchronized void add(Results other)
+		{
+			for (Map.Entry<String, LatencyHistogram> e : other.latency.entrySet())
+			{
+				LatencyHistogram mine = latency.get(e.getKey());
+				if (mine == null)
+				{
+					mine = new LatencyHistogram();
+					latency.put(e.getKey(), mine);
+				}
+				mine.add(e.getValue());
+			}
+			for (Map.Entry<String, Long> e : other.errors.entrySet())
+			{
+				Long count = errors.get(e.getKey());
+				errors.put(e.getKey(), (count == null ? 0 : count) + e.getValue());
+			}
+			elapsedMillis = Math.max(elapsedMillis, other.elapsedMillis);
+		}
+
+		synchronized void writeTo(DataOutputStream out) throws IOException
+		{
+			out.writeLong(elapsedMillis);
+			out.writeInt(latency.size());
+			for (Map.Entry<String, LatencyHistogram> e : latency.entrySet())
+			{
+				out.writeUTF(e.getKey());
+				Long count = errors.get(e.getKey());
+				out.writeLong(count == null ? 0 : count);
+				e.getValue().writeTo(out);
+			}
+		}
+
+		static Results readFrom(DataInputStream in) throws IOException
+		{
+			Results r = new Results();
+			r.elapsedMillis = in.readLong();
+			int labels = in.readInt();
+			for (int i = 0; i < labels; i++)
+			{
+				String label = in.readUTF();
+				long count = in.readLong();
+				if (count > 0) r.errors.put(label, count);
+				r.latency.put(label, LatencyHistogram.readFrom(in));
+			}
+			return r;
+		}
+
+		synchronized void print()
+		{
+			System.out.println("label\tcount\terrors\treq/s\tmean\tp50\tp90\tp99\tmax");
+			for (String label : new TreeSet<String>(latency.keySet()))
+			{
+				LatencyHistogram h = latency.get(label);
+				Long count = errors.get(label);
+				System.out.println(label + "\t" + h.count() + "\t" + (count == null ? 0 : count)
+						+ "\t" + String.format("%.1f", elapsedMillis > 0 ? h.count() * 1000.0 / elapsedMillis : 0)
+						+ "\t" + String.format("%.1f", h.mean())
+						+ "\t" + h.percentile(50) + "\t" + h.percentile(90) + "\t" + h.percentile(99) + "\t" + h.max());
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length >= 7 && "coordinator".equals(args[0]))
+		{
+			String listen = args[1];
+			int colon = listen.lastIndexOf(':');
+			InetAddress address = colon > 0 ? InetAddress.getByName(listen.substring(0, colon)) : null;
+			coordinate(address, Integer.parseInt(listen.substring(colon + 1)), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Long.parseLong(args[4]),
+					args[5], args[6], args.length > 7 ? Long.parseLong(args[7]) : 1, args.length > 8 ? Long.parseLong(args[8]) : 1);
+		}
+		else if (args.length >= 3 && "worker".equals(args[0]))
+		{
+			work(args[1], Integer.parseInt(args[2]));
+		}
+		else if (args.length >= 6 && "local".equals(args[0]))
+		{
+			runLocal(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Long.parseLong(args[3]),
+					args[4], args[5], args.length > 6 ? Long.parseLong(args[6]) : 1, args.length > 7 ? Long.parseLong(args[7]) : 1);
+		}
+		else
+		{
+			System.out.println("Usage:\n"
+					+ "  DistributedLoad coordinator [address:]port workers users iterations server loginfile [assetStart tagStart]\n"
+					+ "  DistributedLoad worker host port\n"
+					+ "  DistributedLoad local workers users iterations server loginfile [assetStart tagStart]");
+		}
+	}
+
+	/**
+	 * Splits users and iterations as evenly as possible across workers and
+	 * gives each worker a contiguous block of asset and tag counter values,
+	 * so no two JVMs create the same asset name or bind the same tag. A null
+	 * address listens on all interfaces.
+	 */
+	public static Results coordinate(InetAddress address, int port, int workers, int users, long iterations, String server, String loginFile,
+			long assetStart, long tagStart) throws IOException
+	{
+		if (users < workers)
+		{
+			throw new IllegalArgumentException(users + " users cannot be spread over " + workers + " workers; use at most " + users + " workers");
+		}
+		ServerSocket listener = new ServerSocket(port, workers, address);
+		List<Socket> sockets = new ArrayList<Socket>();
+		List<DataInputStream> ins = new ArrayList<DataInputStream>();
+		List<DataOutputStream> outs = new ArrayList<DataOutputStream>();
+		try
+		{
+			System.out.println("Waiting for " + workers + " workers on port " + listener.getLocalPort());
+			long assetFrom = assetStart;
+			long tagFrom = tagStart;
+			for (int i = 0; i < workers; i++)
+			{
+				Socket socket = listener.accept();
+				sockets.add(socket);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				ins.add(in);
+				outs.add(out);
+
+				Assignment a = new Assignment();
+				a.server = server;
+				a.loginFile = loginFile;
+				a.users = users / workers + (i < users % workers ? 1 : 0);
+				a.iterations = iterations / workers + (i < iterations % workers ? 1 : 0);
+				a.assetFrom = assetFrom;
+				a.tagFrom = tagFrom;
+				assetFrom += a.iterations;
+				tagFrom += a.iterations;
+				a.writeTo(out);
+				out.flush();
+				System.out.println("Worker " + i + " from " + socket.getRemoteSocketAddress() + ": " + a.users + " users, assets "
+						+ a.assetFrom + ".." + (a.assetFrom + a.iterations - 1));
+			}
+
+			for (int i = 0; i < workers; i++)
+			{
+				if (ins.get(i).readInt() != READY)
+				{
+					throw new IOException("Worker " + i + " did not report ready");
+				}
+			}
+			long startAt = System.currentTimeMillis() + START_DELAY_MILLIS;
+			for (DataOutputStream out : outs)
+			{
+				out.writeInt(START);
+				out.writeLong(startAt);
+				out.flush();
+			}
+			System.out.println("All workers ready, starting at " + startAt);
+
+			Results merged = new Results();
+			for (int i = 0; i < workers; i++)
+			{
+				if (ins.get(i).readInt() != RESULT)
+				{
+					throw new IOException("Worker " + i + " sent no result");
+				}
+				merged.add(Results.readFrom(ins.get(i)));
+			}
+			merged.print();
+			return merged;
+		}
+		finally
+		{
+			for (Socket socket : sockets)
+			{
+				socket.close();
+			}
+			listener.close();
+		}
+	}
+
+	public static void work(String host, int port) throws Exception
+	{
+		Socket socket = connect(host, port, 30000);
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			Assignment a = Assignment.readFrom(in);
+
+			final Results results = new Results();
+			final List<VisionClient> clients = new ArrayList<VisionClient>();
+			final String[] assetType = createAssetType(a, results);
+			for (int i = 0; i < a.users; i++)
+			{
+				VisionClient client = new VisionClient(a.server);
+				client.login(a.loginFile);
+				clients.add(client);
+			}
+			out.writeInt(READY);
+			out.flush();
+
+			if (in.readInt() != START)
+			{
+				throw new IOException("Coordinator did not send start");
+			}
+			long startAt = in.readLong();
+			long wait = startAt - System.currentTimeMillis();
+			if (wait > 0)
+			{
+				Thread.sleep(wait);
+			}
+
+			final AtomicLong next = new AtomicLong(0);
+			final long iterations = a.iterations;
+			final long assetFrom = a.assetFrom;
+			final long tagFrom = a.tagFrom;
+			List<Thread> users = new ArrayList<Thread>();
+			long start = System.currentTimeMillis();
+			for (final VisionClient client : clients)
+			{
+				Thread user = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						long i;
+						while ((i = next.getAndIncrement()) < iterations)
+						{
+							iteration(client, assetType, assetFrom + i, tagFrom + i, results);
+						}
+					}
+				});
+				user.start();
+				users.add(user);
+			}
+			for (Thread user : users)
+			{
+				user.join();
+			}
+			results.elapsedMillis = System.currentTimeMillis() - start;
+
+			out.writeInt(RESULT);
+			results.writeTo(out);
+			out.flush();
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	/**
+	 * Connects to the coordinator, retrying while it is not listening yet;
+	 * forked workers usually start before the coordinator has bound.
+	 */
+	private static Socket connect(String host, int port, long timeoutMillis) throws IOException, InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (true)
+		{
+			try
+			{
+				return new Socket(host, port);
+			}
+			catch (ConnectException e)
+			{
+				if (System.currentTimeMillis() > deadline)
+				{
+					throw e;
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * The Once Only part of Loop1.jmx. Returns the asset type id and the
+	 * property group and property ids the asset bodies refer to.
+	 */
+	private static String[] createAssetType(Assignment a, Results results) throws IOException
+	{
+		VisionClient client = new VisionClient(a.server);
+		client.login(a.loginFile);
+		String content = "<assetType name=\"IVPump\" icon=\"pawn_glass_white.png\"> <propertyGroup name=\"Properties\"> "
+				+ "<property label=\"Property\"  type=\"text\"/> </propertyGroup> </assetType>";
+		long start = System.currentTimeMillis();
+		String response = client.post("/assetTypes", content);
+		results.record("assetType", System.currentTimeMillis() - start, false);
+		Element root = VisionClient.parse(response).getDocumentElement();
+		Element group = (Element) root.getElementsByTagName("propertyGroup").item(0);
+		Element property = (Element) root.getElementsByTagName("property").item(0);
+		return new String[] { root.getAttribute("id"), group.getAttribute("id"), property.getAttribute("id"), root.getAttribute("name") };
+	}
+
+	private static void iteration(VisionClient client, String[] assetType, long assetId, long tagId, Results results)
+	{
+		String asset = "<asset assetTypeId=\"" + assetType[0] + "\"> <property id=\"" + assetType[0] + "," + assetType[1] + ","
+				+ assetType[2] + "\" value=\"" + assetType[3] + assetId + "\"/> </asset>";
+		long start = System.currentTimeMillis();
+		String newAssetId;
+		try
+		{
+			String response = client.post("/assets", asset);
+			newAssetId = VisionClient.parse(response).getDocumentElement().getAttribute("id");
+			results.record("asset", System.currentTimeMillis() - start, false);
+		}
+		catch (IOException e)
+		{
+			results.record("asset", System.currentTimeMillis() - start, true);
+			return;
+		}
+
+		start = System.currentTimeMillis();
+		try
+		{
+			client.post("/assets/" + newAssetId + "/tag", "<tag _method=\"PUT\" id=\"" + tagId + "\"/>");
+			results.record("tag", System.currentTimeMillis() - start, false);
+		}
+		catch (IOException e)
+		{
+			results.record("tag", System.currentTimeMillis() - start, true);
+		}
+	}
+
+	/**
+	 * Coordinator in this JVM, workers as child JVMs on the same classpath.
+	 * Worker output is passed through to this console.
+	 */
+	public static void runLocal(int workers, int users, long iterations, String server, String loginFile, long assetStart,
+			long tagStart) throws Exception
+	{
+		if (users < workers)
+		{
+			throw new IllegalArgumentException(users + " users cannot be spread over " + workers + " workers; use at most " + users + " workers");
+		}
+		ServerSocket probe = new ServerSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classpath = System.getProperty("java.class.path");
+		List<Process> children = new ArrayList<Process>();
+		try
+		{
+			for (int i = 0; i < workers; i++)
+			{
+				ProcessBuilder builder = new ProcessBuilder(java, "-cp", classpath, "DistributedLoad", "worker", "127.0.0.1", String.valueOf(port));
+				builder.inheritIO();
+				children.add(builder.start());
+			}
+			coordinate(InetAddress.getLoopbackAddress(), port, workers, users, iterations, server, loginFile, assetStart, tagStart);
+			for (Process child : children)
+			{
+				child.waitFor();
+			}
+		}
+		finally
+		{
+			for (Process child : children)
+			{
+				child.destroy();
+			}
+		}
+	}
+}
@@ -0,0 +1,505 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * On-disk cache for the PNGs the server hands out: /maps/{id}.png,
+ * /assets/{id}.png and /assetTypes/{id}.png.
+ *
+ * Bodies are stored once per content hash under objects/, and an in-memory
+ * index maps each request path to its hash plus the ETag/Last-Modified the
+ * server gave us. Hits come back as read-only mapped buffers, so serving a
+ * floor map does not copy it onto the heap. The index is written to
+ * index.txt so a restarted client starts warm.
+ *
+ * Usage: ImageCache server loginfile [cachedir] path...
+ */
+public class ImageCache
+{
+	private static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+	private static final long DEFAULT_FRESH_MILLIS = 10 * 60 * 1000;
+
+	private final VisionClient client;
+
+	private final File dir;
+
+	private final File objects;
+
+	private final long maxBytes;
+
+	private final long freshMillis;
+
+	private final Map<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+
+	private final ConcurrentHashMap<String, FutureTask<Entry>> loading = new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+	private final Map<String, MappedByteBuffer> mapped = new ConcurrentHashMap<String, MappedByteBuffer>();
+
+	private static class Entry
+	{
+		final String hash;
+		final long size;
+		final String etag;
+		final String lastModified;
+		volatile long validatedAt;
+		volatile long lastAccess;
+
+		Entry(String hash, long size, String etag, String lastModified, long validatedAt)
+		{
+			this.hash = hash;
+			this.size = size;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.validatedAt = validatedAt;
+			this.lastAccess = validatedAt;
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.out.println("Usage: ImageCache server loginfile [cachedir] path...");
+			return;
+		}
+		File cacheDir = new File(args.length > 2 ? args[2] : "imagecache");
+
+		VisionClient client = new VisionClient(args[0]);
+		client.login(args[1]);
+		ImageCache cache = new ImageCache(client, cacheDir, DEFAULT_MAX_BYTES, DEFAULT_FRESH_MILLIS);
+		for (int i = 3; i < args.length; i++)
+		{
+			try
+			{
+				long start = System.nanoTime();
+				ByteBuffer png = cache.get(args[i]);
+				System.out.println(args[i] + ": " + png.remaining() + " bytes in " + (System.nanoTime() - start) / 1000 + " us");
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		cache.saveIndex();
+	}
+
+	/** Fetches with client's server and session; log it in first. */
+	public ImageCache(VisionClient client, File dir, long maxBytes, long freshMillis)
+	{
+		this.client = client;
+		this.dir = dir;
+		this.objects = new File(dir, "objects");
+		this.maxBytes = maxBytes;
+		this.freshMillis = freshMillis;
+		objects.mkdirs();
+		loadIndex();
+		sweep();
+	}
+
+	/**
+	 * Returns the image for a request path such as "/maps/4d9b.png" as a
+	 * read-only buffer. Entries younger than the freshness window are served
+	 * without touching the network; older ones are revalidated with
+	 * If-None-Match / If-Modified-Since. Concurrent callers for the same path
+	 * share a single fetch.
+	 */
+	public ByteBuffer get(String path) throws IOException
+	{
+		Entry entry = index.get(path);
+		long now = System.currentTimeMillis();
+		if (entry != null && now - entry.validatedAt < freshMillis)
+		{
+			ByteBuffer hit = map(entry);
+			if (hit != null)
+			{
+				entry.lastAccess = now;
+				return hit;
+			}
+		}
+
+		ByteBuffer buffer = map(load(path));
+		if (buffer == null)
+		{
+			// another store evicted it before we mapped it: a miss, so fetch again
+			buffer = map(load(path));
+		}
+		if (buffer == null)
+		{
+			throw new IOException("Cached object for " + path + " disappeared");
+		}
+		return buffer;
+	}
+
+	/** Fetches or revalidates path, sharing one fetch among concurrent callers. */
+	private Entry load(final String path) throws IOException
+	{
+		Entry entry;
+		FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>()
+		{
+			public Entry call() throws IOException
+			{
+				return fetch(path, index.get(path));
+			}
+		});
+		FutureTask<Entry> running = loading.putIfAbsent(path, task);
+		if (running == null)
+		{
+			running = task;
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				loading.remove(path, task);
+			}
+		}
+		try
+		{
+			entry = running.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading " + path);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		entry.lastAccess = System.currentTimeMillis();
+		return entry;
+	}
+
+	private Entry fetch(String path, Entry previous) throws IOException
+	{
+		VisionClient.Transfer transfer = client.transfer("GET", path);
+		try
+		{
+			if (previous != null && objectFile(previous.hash).exists())
+			{
+				if (previous.etag != null) transfer.setHeader("If-None-Match", previous.etag);
+				if (previous.lastModified != null) transfer.setHeader("If-Modified-Since", previous.lastModified);
+			}
+			int code = transfer.status();
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null)
+			{
+				previous.validatedAt = System.currentTimeMillis();
+				return previous;
+			}
+			if (code != HttpURLConnection.HTTP_OK)
+			{
+				throw new IOException("GET " + path + " returned HTTP " + code);
+			}
+
+			File tmp = File.createTempFile("fetch", ".tmp", dir);
+			long size = 0;
+			try
+			{
+				MessageDigest sha = MessageDigest.getInstance("SHA-1");
+				InputStream in = transfer.stream();
+				RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+				try
+				{
+					byte[] buf = new byte[64 * 1024];
+					int n;
+					while ((n = in.read(buf)) > 0)
+					{
+						sha.update(buf, 0, n);
+						out.write(buf, 0, n);
+						size += n;
+					}
+				}
+				finally
+				{
+					out.close();
+					in.close();
+				}
+				String hash = toHex(sha.digest());
+				Entry entry = new Entry(hash, size, transfer.header("ETag"), transfer.header("Last-Modified"), System.currentTimeMillis());
+				store(path, entry, tmp);
+				return entry;
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				throw new IOException(e);
+			}
+			finally
+			{
+				// already moved into objects/ unless something failed
+				tmp.delete();
+			}
+		}
+		finally
+		{
+			transfer.close();
+		}
+	}
+
+	/**
+	 * Moves a fetched body into objects/ and points path at it. This runs
+	 * under the lock evict holds, so an object can't be deleted between
+	 * the existence check and the index update. If path used to point at
+	 * other content that nothing else refers to, that object goes.
+	 */
+	private synchronized void store(String path, Entry entry, File tmp) throws IOException
+	{
+		File object = objectFile(entry.hash);
+		if (!object.exists())
+		{
+			Files.move(tmp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		Entry replaced = index.put(path, entry);
+		if (replaced != null && !replaced.hash.equals(entry.hash) && !referenced(replaced.hash))
+		{
+			dropObject(replaced.hash);
+		}
+		evict(path);
+	}
+
+	/**
+	 * Returns entry's object as a read-only buffer, or null if it has been
+	 * evicted. Mapping a new object takes the lock store and evict hold, so
+	 * the file can't be deleted between the existence check and the open,
+	 * and a mapping is never put back after dropObject removed it.
+	 */
+	private ByteBuffer map(Entry entry) throws IOException
+	{
+		MappedByteBuffer buffer = mapped.get(entry.hash);
+		if (buffer == null)
+		{
+			synchronized (this)
+			{
+				buffer = mapped.get(entry.hash);
+				if (buffer == null)
+				{
+					File object = objectFile(entry.hash);
+					if (!object.exists())
+					{
+						return null;
+					}
+					RandomAccessFile raf = new RandomAccessFile(object, "r");
+					try
+					{
+						buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+					}
+					finally
+					{
+						raf.close();
+					}
+					mapped.put(entry.hash, buffer);
+				}
+			}
+		}
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Drops least recently used paths until the objects they leave behind
+	 * fit under maxBytes. An object is only deleted once no path refers to it.
+	 * The path just stored is kept even if it alone is over the limit, so
+	 * its caller can still map it.
+	 */
+	private synchronized void evict(String keep)
+	{
+		Map<String, Long> sizes = new HashMap<String, Long>();
+		for (Entry entry : index.values())
+		{
+			sizes.put(entry.hash, entry.size);
+		}
+		long total = 0;
+		for (Long size : sizes.values())
+		{
+			total += size;
+		}
+		if (total <= maxBytes)
+		{
+			return;
+		}
+
+		List<Map.Entry<String, Entry>> byAge = new ArrayList<Map.Entry<String, Entry>>(index.entrySet());
+		Collections.sort(byAge, new Comparator<Map.Entry<String, Entry>>()
+		{
+			public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b)
+			{
+				return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+			}
+		});
+		for (Map.Entry<String, Entry> victim : byAge)
+		{
+			if (total <= maxBytes)
+			{
+				break;
+			}
+			if (victim.getKey().equals(keep))
+			{
+				continue;
+			}
+			index.remove(victim.getKey());
+			String hash = victim.getValue().hash;
+			if (!referenced(hash))
+			{
+				dropObject(hash);
+				total -= victim.getValue().size;
+			}
+		}
+	}
+
+	private boolean referenced(String hash)
+	{
+		for (Entry other : index.values())
+		{
+			if (other.hash.equals(hash))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void dropObject(String hash)
+	{
+		mapped.remove(hash);
+		objectFile(hash).delete();
+	}
+
+	/**
+	 * Deletes objects no index entry refers to, and temp files from fetches
+	 * that never finished: whatever an earlier run left behind.
+	 */
+	private void sweep()
+	{
+		Map<String, Boolean> live = new HashMap<String, Boolean>();
+		for (Entry entry : index.values())
+		{
+			live.put(entry.hash + ".png", Boolean.TRUE);
+		}
+		File[] files = objects.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				if (!live.containsKey(file.getName()))
+				{
+					file.delete();
+				}
+			}
+		}
+		files = dir.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				if (file.getName().startsWith("fetch") && file.getName().endsWith(".tmp"))
+				{
+					file.delete();
+				}
+			}
+		}
+	}
+
+	private File objectFile(String hash)
+	{
+		return new File(objects, hash + ".png");
+	}
+
+	private void loadIndex()
+	{
+		File file = new File(dir, "index.txt");
+		if (!file.exists())
+		{
+			return;
+		}
+		try
+		{
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try
+			{
+				String line;
+				while ((line = in.readLine()) != null)
+				{
+					String[] f = line.split("\t", -1);
+					if (f.length == 6 && objectFile(f[1]).exists())
+					{
+						Entry entry = new Entry(f[1], Long.parseLong(f[2]), f[3].length() == 0 ? null : f[3], f[4].length() == 0 ? null : f[4], Long.parseLong(f[5]));
+						index.put(f[0], entry);
+					}
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void saveIndex()
+	{
+		File tmp = new File(dir, "index.txt.tmp");
+		try
+		{
+			PrintWriter out = new PrintWriter(new FileWriter(tmp));
+			try
+			{
+				for (Map.Entry<String, Entry> e : index.entrySet())
+				{
+					Entry entry = e.getValue();
+					out.println(e.getKey() + "\t" + entry.hash + "\t" + entry.size + "\t"
+							+ (entry.etag == null ? "" : entry.etag) + "\t"
+							+ (entry.lastModified == null ? "" : entry.lastModified) + "\t" + entry.validatedAt);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			Files.move(tmp.toPath(), new File(dir, "index.txt").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuffer hex = new StringBuffer();
+		for (byte b : bytes)
+		{
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,568 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Element;
+
+/**
+ * Brings the server in line with the master inventory by sending only what
+ * changed, instead of re-posting every asset and re-binding every tag.
+ *
+ * The inventory is a tab separated file, one asset per line:
+ *   key  assetTypeId  tagId  propertyId=value  propertyId=value ...
+ * where tagId may be empty. Property ids are the "assetType,group,property"
+ * paths used in assets7070.txt. The key is the value of one named property,
+ * declared per asset type by a line
+ *   #key=propertyId
+ * before the assets of that type (the type is the first part of the id).
+ * Server assets are keyed on the same property, so both sides agree on
+ * which asset is which; a row whose key isn't the value of its type's key
+ * property is rejected, and server assets of a type with no key property
+ * are left alone.
+ *
+ * /assets and /tags are read with a streaming parser and every record is
+ * reduced to a 64-bit content hash, so neither side is ever held as a DOM.
+ * The result of each run is kept in a small binary snapshot (key, asset id,
+ * tag id); it records which assets are ours, not their content, since the
+ * server is always read anyway. An asset is only deleted if it was in the last snapshot
+ * and has since gone from the inventory, so assets made by hand on the
+ * server are left alone. For the same reason an asset whose update, rebind
+ * or delete fails stays in the snapshot, so the next run tries again
+ * rather than forgetting that the asset is ours.
+ *
+ * Usage: InventorySync server loginfile inventory.tsv snapshot.bin [threads] [-dry]
+ */
+public class InventorySync
+{
+	private static final int SNAPSHOT_MAGIC = 0x56495332;
+
+	/** The first format, which also stored a content hash no run ever read. */
+	private static final int SNAPSHOT_MAGIC_V1 = 0x56495331;
+
+	private static final String KEY_DIRECTIVE = "#key=";
+
+	/** One asset as the inventory, the server or the snapshot sees it. */
+	static class Record
+	{
+		String key;
+		String assetId;
+		String assetTypeId;
+		String tagId = "";
+		TreeMap<String, String> properties = new TreeMap<String, String>();
+		long hash;
+
+		long computeHash()
+		{
+			StringBuffer canonical = new StringBuffer(assetTypeId != null ? assetTypeId : "");
+			for (Map.Entry<String, String> p : properties.entrySet())
+			{
+				canonical.append('\u0000').append(p.getKey()).append('=').append(p.getValue());
+			}
+			hash = fnv(canonical.toString());
+			return hash;
+		}
+	}
+
+	private final VisionClient client;
+
+	private final int threads;
+
+	private final boolean dryRun;
+
+	private final AtomicInteger created = new AtomicInteger();
+
+	private final AtomicInteger updated = new AtomicInteger();
+
+	private final AtomicInteger rebound = new AtomicInteger();
+
+	private final AtomicInteger deleted = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private final AtomicInteger unchanged = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 4)
+		{
+			System.out.println("Usage: InventorySync server loginfile inventory.tsv snapshot.bin [threads] [-dry]");
+			return;
+		}
+		VisionClient client = new VisionClient(args[0]);
+		client.login(args[1]);
+		int threads = args.length > 4 && !"-dry".equals(args[4]) ? Integer.parseInt(args[4]) : 8;
+		boolean dry = "-dry".equals(args[args.length - 1]);
+		new InventorySync(client, threads, dry).sync(new File(args[2]), new File(args[3]));
+	}
+
+	public InventorySync(VisionClient client, int threads, boolean dryRun)
+	{
+		this.client = client;
+		this.threads = threads;
+		this.dryRun = dryRun;
+	}
+
+	public void sync(File inventoryFile, File snapshotFile) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		Map<String, String> keyProperties = new HashMap<String, String>();
+		Map<String, Record> inventory = readInventory(inventoryFile, keyProperties);
+		Map<String, Record> snapshot = readSnapshot(snapshotFile);
+		Map<String, Record> server = readServer(snapshot, keyProperties);
+		System.out.println("inventory=" + inventory.size() + " server=" + server.size() + " snapshot=" + snapshot.size()
+				+ " read in " + (System.currentTimeMillis() - start) + " ms");
+
+		final Map<String, Record> synced = Collections.synchronizedMap(new HashMap<String, Record>());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for (final Record wanted : inventory.values())
+		{
+			final Record current = server.get(wanted.key);
+			if (current == null)
+			{
+				pool.execute(new Runnable()
+				{
+					public void run()
+					{
+						// a create whose tag bind failed still made the asset
+						if (create(wanted) || wanted.assetId != null) synced.put(wanted.key, wanted);
+					}
+				});
+				continue;
+			}
+			wanted.assetId = current.assetId;
+			final Record previous = snapshot.containsKey(wanted.key) ? snapshot.get(wanted.key) : current;
+			final boolean changed = current.hash != wanted.hash;
+			final boolean retag = !current.tagId.equals(wanted.tagId);
+			if (!changed && !retag)
+			{
+				unchanged.incrementAndGet();
+				synced.put(wanted.key, wanted);
+				continue;
+			}
+			pool.execute(new Runnable()
+			{
+				public void run()
+				{
+					boolean ok = (!changed || update(wanted)) && (!retag || bind(wanted));
+					synced.put(wanted.key, ok ? wanted : previous);
+				}
+			});
+		}
+		for (final Record old : snapshot.values())
+		{
+			final Record current = server.get(old.key);
+			if (!inventory.containsKey(old.key) && current != null && current.assetId.equals(old.assetId))
+			{
+				pool.execute(new Runnable()
+				{
+					public void run()
+					{
+						if (!delete(old)) synced.put(old.key, old);
+					}
+				});
+			}
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+		if (!dryRun)
+		{
+			writeSnapshot(snapshotFile, synced.values());
+		}
+		System.out.println((dryRun ? "[dry run] " : "") + "created=" + created + " updated=" + updated + " rebound=" + rebound
+				+ " deleted=" + deleted + " failed=" + failed + " unchanged=" + unchanged + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private boolean create(Record r)
+	{
+		try
+		{
+			if (!dryRun)
+			{
+				String response = client.post("/assets", assetXml(r, false));
+				Element root = VisionClient.parse(response).getDocumentElement();
+				r.assetId = root.getAttribute("id");
+				if (r.tagId.length() > 0)
+				{
+					String tagId = r.tagId;
+					r.tagId = "";
+					client.post("/assets/" + r.assetId + "/tag", "<tag _method=\"PUT\" id=\"" + tagId + "\"/>");
+					r.tagId = tagId;
+				}
+			}
+			created.incrementAndGet();
+			return true;
+		}
+		catch (IOException e)
+		{
+			failure("create", r, e);
+			return false;
+		}
+	}
+
+	private boolean update(Record r)
+	{
+		try
+		{
+			if (!dryRun)
+			{
+				client.post("/assets/" + r.assetId, assetXml(r, true));
+			}
+			updated.incrementAndGet();
+			return true;
+		}
+		catch (IOException e)
+		{
+			failure("update", r, e);
+			return false;
+		}
+	}
+
+	private boolean bind(Record r)
+	{
+		try
+		{
+			if (!dryRun)
+			{
+				String body = r.tagId.length() > 0 ? "<tag _method=\"PUT\" id=\"" + r.tagId + "\"/>" : "<tag _method=\"DELETE\"/>";
+				client.post("/assets/" + r.assetId + "/tag", body);
+			}
+			rebound.incrementAndGet();
+			return true;
+		}
+		catch (IOException e)
+		{
+			failure("bind", r, e);
+			return false;
+		}
+	}
+
+	private boolean delete(Record r)
+	{
+		try
+		{
+			if (!dryRun)
+			{
+				client.delete("/assets/" + r.assetId);
+			}
+			deleted.incrementAndGet();
+			return true;
+		}
+		catch (IOException e)
+		{
+			failure("delete", r, e);
+			return false;
+		}
+	}
+
+	private void failure(String action, Record r, IOException e)
+	{
+		failed.incrementAndGet();
+		System.out.println(action + " " + r.key + " failed: " + e.getMessage());
+	}
+
+	private static String assetXml(Record r, boolean update)
+	{
+		StringBuffer xml = new StringBuffer("<asset");
+		if (update)
+		{
+			xml.append(" _method=\"PUT\" id=\"").append(r.assetId).append('"');
+		}
+		xml.append(" assetTypeId=\"").append(r.assetTypeId).append("\">");
+		for (Map.Entry<String, String> p : r.properties.entrySet())
+		{
+			xml.append("<property id=\"").append(p.getKey()).append("\" value=\"").append(escape(p.getValue())).append("\"/>");
+		}
+		return xml.append("</asset>").toString();
+	}
+
+	/**
+	 * Reads the inventory, and into keyProperties the key property id of
+	 * each asset type it declares.
+	 */
+	static Map<String, Record> readInventory(File file, Map<String, String> keyProperties) throws IOException
+	{
+		Map<String, Record> records = new HashMap<String, Record>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			String line;
+			int number = 0;
+			while ((line = in.readLine()) != null)
+			{
+				number++;
+				if (line.startsWith(KEY_DIRECTIVE))
+				{
+					String propertyId = line.substring(KEY_DIRECTIVE.length()).trim();
+					keyProperties.put(propertyId.split(",")[0], propertyId);
+					continue;
+				}
+				if (line.length() == 0 || line.startsWith("#"))
+				{
+					continue;
+				}
+				String[] fields = line.split("\t", -1);
+				if (fields.length < 4)
+				{
+					throw new IOException(file + ":" + number + ": expected key, assetTypeId, tagId and properties");
+				}
+				Record r = new Record();
+				r.key = fields[0];
+				r.assetTypeId = fields[1];
+				r.tagId = fields[2];
+				for (int i = 3; i < fields.length; i++)
+				{
+					int eq = fields[i].indexOf('=');
+					if (eq > 0)
+					{
+						r.properties.put(fields[i].substring(0, eq), fields[i].substring(eq + 1));
+					}
+				}
+				String keyProperty = keyProperties.get(r.assetTypeId);
+				if (keyProperty == null)
+				{
+					throw new IOException(file + ":" + number + ": no " + KEY_DIRECTIVE + " line for asset type " + r.assetTypeId);
+				}
+				if (!r.key.equals(r.properties.get(keyProperty)))
+				{
+					throw new IOException(file + ":" + number + ": key " + r.key + " is not the value of " + keyProperty);
+				}
+				if (records.containsKey(r.key))
+				{
+					throw new IOException(file + ":" + number + ": key " + r.key + " appears twice");
+				}
+				r.computeHash();
+				records.put(r.key, r);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return records;
+	}
+
+	/**
+	 * Streams /assets and /tags. An asset's key is the value of its type's
+	 * key property, as in the inventory; assets without one are skipped.
+	 * Server assets that share a key are reported; the one in the snapshot
+	 * (or else the lowest id) is the one kept in sync.
+	 */
+	Map<String, Record> readServer(Map<String, Record> snapshot, Map<String, String> keyProperties) throws IOException
+	{
+		Map<String, Record> byId = new HashMap<String, Record>();
+		InputStream in = client.stream("/assets");
+		try
+		{
+			XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader(in);
+			Record current = null;
+			while (xml.hasNext())
+			{
+				int event = xml.next();
+				if (event == XMLStreamConstants.START_ELEMENT)
+				{
+					String name = xml.getLocalName();
+					if ("asset".equals(name))
+					{
+						current = new Record();
+						current.assetId = xml.getAttributeValue(null, "id");
+						current.assetTypeId = xml.getAttributeValue(null, "assetTypeId");
+					}
+					else if ("property".equals(name) && current != null)
+					{
+						String value = xml.getAttributeValue(null, "value");
+						if (value == null) value = "";
+						current.properties.put(xml.getAttributeValue(null, "id"), value);
+					}
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT && "asset".equals(xml.getLocalName()) && current != null)
+				{
+					String keyProperty = keyProperties.get(current.assetTypeId);
+					current.key = keyProperty != null ? current.properties.get(keyProperty) : null;
+					if (current.key != null)
+					{
+						current.computeHash();
+						byId.put(current.assetId, current);
+					}
+					current = null;
+				}
+			}
+			xml.close();
+		}
+		catch (XMLStreamException e)
+		{
+			throw new IOException("Could not parse /assets", e);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		in = client.stream("/tags");
+		try
+		{
+			XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader(in);
+			while (xml.hasNext())
+			{
+				if (xml.next() == XMLStreamConstants.START_ELEMENT && "tag".equals(xml.getLocalName()))
+				{
+					String assetId = xml.getAttributeValue(null, "assetId");
+					Record r = assetId != null ? byId.get(assetId) : null;
+					if (r != null)
+					{
+						r.tagId = xml.getAttributeValue(null, "tagid");
+					}
+				}
+			}
+			xml.close();
+		}
+		catch (XMLStreamException e)
+		{
+			throw new IOException("Could not parse /tags", e);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		Map<String, Record> byKey = new HashMap<String, Record>();
+		Map<String, List<String>> duplicates = new TreeMap<String, List<String>>();
+		for (Record r : byId.values())
+		{
+			Record other = byKey.get(r.key);
+			if (other == null)
+			{
+				byKey.put(r.key, r);
+				continue;
+			}
+			List<String> ids = duplicates.get(r.key);
+			if (ids == null)
+			{
+				ids = new ArrayList<String>();
+				ids.add(other.assetId);
+				duplicates.put(r.key, ids);
+			}
+			ids.add(r.assetId);
+			Record owned = snapshot.get(r.key);
+			boolean otherOwned = owned != null && owned.assetId.equals(other.assetId);
+			boolean thisOwned = owned != null && owned.assetId.equals(r.assetId);
+			if (thisOwned || (!otherOwned && r.assetId.compareTo(other.assetId) < 0))
+			{
+				byKey.put(r.key, r);
+			}
+		}
+		for (Map.Entry<String, List<String>> e : duplicates.entrySet())
+		{
+			Collections.sort(e.getValue());
+			System.out.println("Server has " + e.getValue().size() + " assets named " + e.getKey() + " " + e.getValue()
+					+ "; syncing " + byKey.get(e.getKey()).assetId + " and leaving the others alone");
+		}
+		return byKey;
+	}
+
+	static Map<String, Record> readSnapshot(File file) throws IOException
+	{
+		Map<String, Record> records = new HashMap<String, Record>();
+		if (!file.exists())
+		{
+			return records;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			int magic = in.readInt();
+			if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V1)
+			{
+				throw new IOException(file + " is not an inventory snapshot");
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				Record r = new Record();
+				r.key = in.readUTF();
+				r.assetId = in.readUTF();
+				if (magic == SNAPSHOT_MAGIC_V1)
+				{
+					in.readLong();
+				}
+				r.tagId = in.readUTF();
+				records.put(r.key, r);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return records;
+	}
+
+	static void writeSnapshot(File file, Iterable<Record> records) throws IOException
+	{
+		List<Record> list = new ArrayList<Record>();
+		for (Record r : records)
+		{
+			if (r.assetId != null) list.add(r);
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try
+		{
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(list.size());
+			for (Record r : list)
+			{
+				out.writeUTF(r.key);
+				out.writeUTF(r.assetId);
+				out.writeUTF(r.tagId);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** 64-bit FNV-1a over the UTF-8 bytes. */
+	static long fnv(String s)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : s.getBytes(StandardCharsets.UTF_8))
+		{
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static String escape(String s)
+	{
+		return s.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;");
+	}
+}
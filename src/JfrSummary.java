@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarises the vision.Request and vision.Parse events of a Flight
+ * Recorder file: per endpoint, where the time went (connect, write, waiting
+ * on the server, reading the body) and how much was moved; per caller, how
+ * long DOM parsing took. A run whose p99 moved can then be read as "the
+ * server got slower" or "we spent it parsing" without re-running it.
+ *
+ * Record with e.g.
+ *   java -XX:StartFlightRecording=filename=run.jfr SoakTest ...
+ *
+ * Usage: JfrSummary run.jfr
+ */
+public class JfrSummary
+{
+	/** Totals for one endpoint; phase times are kept in microseconds. */
+	static class EndpointStats
+	{
+		final LatencyHistogram total = new LatencyHistogram();
+		long connect;
+		long write;
+		long waitForResponse;
+		long read;
+		long requestBytes;
+		long responseBytes;
+		long errors;
+		long retries;
+
+		void add(RecordedEvent e)
+		{
+			total.record(micros(e.getDuration()));
+			connect += micros(e.getDuration("connect"));
+			write += micros(e.getDuration("write"));
+			waitForResponse += micros(e.getDuration("waitForResponse"));
+			read += micros(e.getDuration("read"));
+			requestBytes += e.getLong("requestBytes");
+			responseBytes += Math.max(0, e.getLong("responseBytes"));
+			int status = e.getInt("status");
+			if (status == 0 || status >= 400)
+			{
+				errors++;
+			}
+			if (e.getInt("retry") > 0)
+			{
+				retries++;
+			}
+		}
+	}
+
+	/** Totals for one parse caller. */
+	static class ParseStats
+	{
+		final LatencyHistogram total = new LatencyHistogram();
+		long characters;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1)
+		{
+			System.out.println("Usage: JfrSummary run.jfr");
+			return;
+		}
+		Map<String, EndpointStats> endpoints = new TreeMap<String, EndpointStats>();
+		Map<String, ParseStats> parses = new TreeMap<String, ParseStats>();
+		read(Paths.get(args[0]), endpoints, parses);
+		print(endpoints, parses);
+	}
+
+	static void read(Path file, Map<String, EndpointStats> endpoints, Map<String, ParseStats> parses) throws IOException
+	{
+		RecordingFile recording = new RecordingFile(file);
+		try
+		{
+			while (recording.hasMoreEvents())
+			{
+				RecordedEvent e = recording.readEvent();
+				String type = e.getEventType().getName();
+				if ("vision.Request".equals(type))
+				{
+					String key = e.getString("method") + " " + e.getString("endpoint");
+					EndpointStats stats = endpoints.get(key);
+					if (stats == null)
+					{
+						stats = new EndpointStats();
+						endpoints.put(key, stats);
+					}
+					stats.add(e);
+				}
+				else if ("vision.Parse".equals(type))
+				{
+					String key = e.getString("caller");
+					ParseStats stats = parses.get(key);
+					if (stats == null)
+					{
+						stats = new ParseStats();
+						parses.put(key, stats);
+					}
+					stats.total.record(micros(e.getDuration()));
+					stats.characters += e.getLong("characters");
+				}
+			}
+		}
+		finally
+		{
+			recording.close();
+		}
+	}
+
+	static void print(Map<String, EndpointStats> endpoints, Map<String, ParseStats> parses)
+	{
+		if (endpoints.isEmpty() && parses.isEmpty())
+		{
+			System.out.println("No vision events in the recording");
+			return;
+		}
+		if (!endpoints.isEmpty())
+		{
+			System.out.println(String.format("%-40s %7s %6s %6s %9s %9s %9s %9s %9s %9s %10s %10s",
+					"endpoint", "count", "errors", "retry", "mean ms", "p99 ms",
+					"connect", "write", "wait", "read", "req KB", "resp KB"));
+			for (Map.Entry<String, EndpointStats> entry : endpoints.entrySet())
+			{
+				EndpointStats s = entry.getValue();
+				long n = s.total.count();
+				System.out.println(String.format("%-40s %7d %6d %6d %9.2f %9.2f %8.1f%% %8.1f%% %8.1f%% %8.1f%% %10.1f %10.1f",
+						entry.getKey(), n, s.errors, s.retries,
+						s.total.mean() / 1000, s.total.percentile(99) / 1000.0,
+						share(s.connect, s), share(s.write, s), share(s.waitForResponse, s), share(s.read, s),
+						s.requestBytes / 1024.0, s.responseBytes / 1024.0));
+			}
+		}
+		if (!parses.isEmpty())
+		{
+			System.out.println();
+			System.out.println(String.format("%-40s %7s %9s %9s %12s", "parse", "count", "mean ms", "p99 ms", "chars/ms"));
+			for (Map.Entry<String, ParseStats> entry : parses.entrySet())
+			{
+				ParseStats s = entry.getValue();
+				double totalMillis = s.total.mean() * s.total.count() / 1000;
+				System.out.println(String.format("%-40s %7d %9.3f %9.3f %12.0f",
+						entry.getKey(), s.total.count(), s.total.mean() / 1000, s.total.percentile(99) / 1000.0,
+						totalMillis > 0 ? s.characters / totalMillis : 0));
+			}
+		}
+	}
+
+	/** A phase's share of the endpoint's total time, in percent. */
+	private static double share(long phaseMicros, EndpointStats s)
+	{
+		double total = s.total.mean() * s.total.count();
+		return total > 0 ? 100.0 * phaseMicros / total : 0;
+	}
+
+	/** The histogram is unit-free; recording microseconds keeps sub-ms phases visible. */
+	private static long micros(Duration d)
+	{
+		return d.toNanos() / 1000;
+	}
+}
@@ -0,0 +1,163 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Fixed-size, mergeable latency histogram in milliseconds.
+ *
+ * Values below 128 get their own bucket; above that each power of two is
+ * split into 64 buckets, so any recorded value is reported to within about
+ * 1.5%. Two histograms can be added together without losing anything,
+ * which is what lets per-chunk or per-worker results be combined; writeTo
+ * and readFrom carry one over a stream, listing only non-empty buckets.
+ */
+public class LatencyHistogram
+{
+	private static final int LINEAR = 128;
+
+	private static final int HALF = LINEAR / 2;
+
+	private static final int SHIFT_BITS = 7;
+
+	private static final int BUCKETS = LINEAR + (64 - SHIFT_BITS) * HALF;
+
+	private final long[] counts = new long[BUCKETS];
+
+	private long count;
+
+	private long sum;
+
+	private long min = Long.MAX_VALUE;
+
+	private long max = Long.MIN_VALUE;
+
+	public void record(long millis)
+	{
+		if (millis < 0) millis = 0;
+		counts[bucket(millis)]++;
+		count++;
+		sum += millis;
+		if (millis < min) min = millis;
+		if (millis > max) max = millis;
+	}
+
+	public void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		if (other.min < min) min = other.min;
+		if (other.max > max) max = other.max;
+	}
+
+	public long count()
+	{
+		return count;
+	}
+
+	public long min()
+	{
+		return count == 0 ? 0 : min;
+	}
+
+	public long max()
+	{
+		return count == 0 ? 0 : max;
+	}
+
+	public double mean()
+	{
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * Returns the value at the given percentile (0-100), as the upper edge of
+	 * the bucket it falls in, clamped to the largest value actually seen.
+	 */
+	public long percentile(double percentile)
+	{
+		if (count == 0)
+		{
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile / 100.0 * count);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+			{
+				return Math.min(upper(i), max);
+			}
+		}
+		return max;
+	}
+
+	public void writeTo(DataOutput out) throws IOException
+	{
+		out.writeLong(count);
+		out.writeLong(sum);
+		out.writeLong(min);
+		out.writeLong(max);
+		int used = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			if (counts[i] != 0) used++;
+		}
+		out.writeInt(used);
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			if (counts[i] != 0)
+			{
+				out.writeShort(i);
+				out.writeLong(counts[i]);
+			}
+		}
+	}
+
+	public static LatencyHistogram readFrom(DataInput in) throws IOException
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.count = in.readLong();
+		histogram.sum = in.readLong();
+		histogram.min = in.readLong();
+		histogram.max = in.readLong();
+		int used = in.readInt();
+		for (int i = 0; i < used; i++)
+		{
+			int bucket = in.readShort();
+			if (bucket < 0 || bucket >= BUCKETS)
+			{
+				throw new IOException("Bad histogram bucket " + bucket);
+			}
+			histogram.counts[bucket] = in.readLong();
+		}
+		return histogram;
+	}
+
+	static int bucket(long value)
+	{
+		if (value < LINEAR)
+		{
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SHIFT_BITS - 1);
+		int sub = (int) (value >>> shift);
+		return LINEAR + (shift - 1) * HALF + (sub - HALF);
+	}
+
+	static long upper(int bucket)
+	{
+		if (bucket < LINEAR)
+		{
+			return bucket;
+		}
+		int shift = (bucket - LINEAR) / HALF + 1;
+		long sub = (bucket - LINEAR) % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,387 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.w3c.dom.Element;
+
+/**
+ * Coalesces per-asset position lookups.
+ *
+ * Callers ask for one asset at a time, as they would with
+ * /assets/{id}/position, but requests are held for a short window and then
+ * answered together from one /maps/{id}/assets.json call per map. Repeated
+ * asks for an asset that is already pending or being fetched share the same
+ * future.
+ *
+ * Which map an asset is on is learnt from earlier answers; while any pending
+ * asset is unknown, every configured map is fetched. Assets not found on any
+ * map (assets.json only lists the asset types selected for the user) fall
+ * back to /assets/{id}/position, several at a time; the server has no
+ * call that returns positions for a list of assets (/assets/search only
+ * answers with ids). If a map can't be read, the assets that may be on it
+ * fail with that error rather than each falling back on its own.
+ *
+ * Usage: PositionService server loginfile mapId,mapId,... assetId...
+ */
+public class PositionService
+{
+	private static final Pattern ID = Pattern.compile("\"id\"\\s*:\\s*\"([^\"]+)\"");
+
+	private static final Pattern TIMESTAMP = Pattern.compile("\"timestamp\"\\s*:\\s*(-?\\d+)");
+
+	private static final Pattern POINT = Pattern.compile("\"point\"\\s*:\\s*\\[\\s*([-0-9.eE]+)\\s*,\\s*([-0-9.eE]+)\\s*\\]");
+
+	private final VisionClient client;
+
+	private final List<String> mapIds;
+
+	private final long windowMillis;
+
+	private final Map<String, String> assetMaps = new ConcurrentHashMap<String, String>();
+
+	private final Map<String, CompletableFuture<Position>> pending = new HashMap<String, CompletableFuture<Position>>();
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+	private final ExecutorService fetchers;
+
+	private final ExecutorService fallback = Executors.newFixedThreadPool(8);
+
+	private final Map<String, CompletableFuture<Position>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Position>>();
+
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private final AtomicInteger httpCalls = new AtomicInteger();
+
+	public static class Position
+	{
+		public final String assetId;
+		public final String mapId;
+		public final double x;
+		public final double y;
+		public final long timestamp;
+
+		Position(String assetId, String mapId, double x, double y, long timestamp)
+		{
+			this.assetId = assetId;
+			this.mapId = mapId;
+			this.x = x;
+			this.y = y;
+			this.timestamp = timestamp;
+		}
+
+		public String toString()
+		{
+			return assetId + "@" + mapId + "(" + x + "," + y + ")@" + timestamp;
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 3)
+		{
+			System.out.println("Usage: PositionService server loginfile mapId,mapId,... assetId...");
+			return;
+		}
+		VisionClient client = new VisionClient(args[0]);
+		client.login(args[1]);
+
+		List<String> maps = new ArrayList<String>();
+		for (String id : args[2].split(","))
+		{
+			maps.add(id);
+		}
+		PositionService service = new PositionService(client, maps, 50);
+		List<CompletableFuture<Position>> answers = new LinkedList<CompletableFuture<Position>>();
+		for (int i = 3; i < args.length; i++)
+		{
+			answers.add(service.position(args[i]));
+		}
+		try
+		{
+			for (CompletableFuture<Position> answer : answers)
+			{
+				try
+				{
+					System.out.println(answer.get());
+				}
+				catch (ExecutionException e)
+				{
+					System.out.println(e.getCause());
+				}
+			}
+			System.out.println(service.stats());
+		}
+		finally
+		{
+			service.shutdown();
+		}
+	}
+
+	/** Reads with client's server and session; log it in first. */
+	public PositionService(VisionClient client, List<String> mapIds, long windowMillis)
+	{
+		this.client = client;
+		this.mapIds = new ArrayList<String>(mapIds);
+		this.windowMillis = windowMillis;
+		this.fetchers = Executors.newFixedThreadPool(Math.max(1, Math.min(mapIds.size(), 8)));
+	}
+
+	/**
+	 * Returns a future for the asset's current position. The future
+	 * completes with null if the server has no position for the asset.
+	 */
+	public CompletableFuture<Position> position(String assetId)
+	{
+		requests.incrementAndGet();
+		synchronized (pending)
+		{
+			CompletableFuture<Position> future = inFlight.get(assetId);
+			if (future == null)
+			{
+				future = pending.get(assetId);
+			}
+			if (future == null)
+			{
+				future = new CompletableFuture<Position>();
+				if (pending.isEmpty())
+				{
+					timer.schedule(new Runnable()
+					{
+						public void run()
+						{
+							flush();
+						}
+					}, windowMillis, TimeUnit.MILLISECONDS);
+				}
+				pending.put(assetId, future);
+			}
+			return future;
+		}
+	}
+
+	public String stats()
+	{
+		return "requests=" + requests.get() + " httpCalls=" + httpCalls.get();
+	}
+
+	public void shutdown()
+	{
+		timer.shutdown();
+		fetchers.shutdown();
+		fallback.shutdown();
+	}
+
+	private void flush()
+	{
+		final Map<String, CompletableFuture<Position>> batch;
+		synchronized (pending)
+		{
+			batch = new HashMap<String, CompletableFuture<Position>>(pending);
+			inFlight.putAll(pending);
+			pending.clear();
+		}
+		if (batch.isEmpty())
+		{
+			return;
+		}
+		for (final Map.Entry<String, CompletableFuture<Position>> entry : batch.entrySet())
+		{
+			entry.getValue().whenComplete(new BiConsumer<Position, Throwable>()
+			{
+				public void accept(Position position, Throwable failure)
+				{
+					inFlight.remove(entry.getKey(), entry.getValue());
+				}
+			});
+		}
+
+		Set<String> maps = new HashSet<String>();
+		for (String assetId : batch.keySet())
+		{
+			String mapId = assetMaps.get(assetId);
+			if (mapId == null)
+			{
+				maps.clear();
+				maps.addAll(mapIds);
+				break;
+			}
+			maps.add(mapId);
+		}
+
+		final Map<String, IOException> failedMaps = new ConcurrentHashMap<String, IOException>();
+		List<CompletableFuture<Void>> calls = new ArrayList<CompletableFuture<Void>>();
+		for (final String mapId : maps)
+		{
+			calls.add(CompletableFuture.runAsync(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						for (Position position : readMap(mapId))
+						{
+							assetMaps.put(position.assetId, mapId);
+							CompletableFuture<Position> future = batch.get(position.assetId);
+							if (future != null)
+							{
+								future.complete(position);
+							}
+						}
+					}
+					catch (IOException e)
+					{
+						failedMaps.put(mapId, e);
+					}
+				}
+			}, fetchers));
+		}
+
+		CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).thenRun(new Runnable()
+		{
+			public void run()
+			{
+				for (Map.Entry<String, CompletableFuture<Position>> entry : batch.entrySet())
+				{
+					if (!entry.getValue().isDone())
+					{
+						answerMissing(entry.getKey(), entry.getValue(), failedMaps);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * An asset none of the maps listed. If a map it could be on failed, the
+	 * asset fails with that error; otherwise its own position is read on
+	 * the fallback pool.
+	 */
+	private void answerMissing(final String assetId, final CompletableFuture<Position> future, Map<String, IOException> failedMaps)
+	{
+		String mapId = assetMaps.get(assetId);
+		IOException failure = mapId != null ? failedMaps.get(mapId) : null;
+		if (failure == null && mapId == null && !failedMaps.isEmpty())
+		{
+			Map.Entry<String, IOException> first = failedMaps.entrySet().iterator().next();
+			mapId = first.getKey();
+			failure = first.getValue();
+		}
+		if (failure != null)
+		{
+			future.completeExceptionally(new IOException("Could not read map " + mapId + " for asset " + assetId, failure));
+			return;
+		}
+		fallback.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					future.complete(readAsset(assetId));
+				}
+				catch (Exception e)
+				{
+					future.completeExceptionally(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads /maps/{id}/assets.json. The body is the flat array written by
+	 * get-assets-on-map-json, so each object is picked out by brace depth and
+	 * its fields by pattern rather than pulling in a JSON library.
+	 */
+	private Collection<Position> readMap(String mapId) throws IOException
+	{
+		String json = get("/maps/" + mapId + "/assets.json");
+		List<Position> positions = new ArrayList<Position>();
+		int depth = 0;
+		int start = -1;
+		for (int i = 0; i < json.length(); i++)
+		{
+			char c = json.charAt(i);
+			if (c == '{')
+			{
+				if (depth++ == 0) start = i;
+			}
+			else if (c == '}')
+			{
+				if (--depth == 0 && start >= 0)
+				{
+					Position position = parseAsset(json.substring(start, i + 1), mapId);
+					if (position != null) positions.add(position);
+				}
+			}
+		}
+		return positions;
+	}
+
+	private static Position parseAsset(String object, String mapId)
+	{
+		Matcher id = ID.matcher(object);
+		Matcher point = POINT.matcher(object);
+		if (!id.find() || !point.find())
+		{
+			return null;
+		}
+		Matcher ts = TIMESTAMP.matcher(object);
+		long timestamp = ts.find() ? Long.parseLong(ts.group(1)) : 0;
+		return new Position(id.group(1), mapId, Double.parseDouble(point.group(1)), Double.parseDouble(point.group(2)), timestamp);
+	}
+
+	private Position readAsset(String assetId) throws Exception
+	{
+		String xml;
+		try
+		{
+			xml = get("/assets/" + assetId + "/position");
+		}
+		catch (VisionClient.StatusException e)
+		{
+			if (e.getStatus() != 404)
+			{
+				throw e;
+			}
+			// the asset has no position observation
+			return null;
+		}
+		Element root = VisionClient.parse(xml, "PositionService.readAsset").getDocumentElement();
+		if (!root.hasAttribute("x"))
+		{
+			return null;
+		}
+		String mapId = root.getAttribute("mapId");
+		if (mapId.length() > 0)
+		{
+			assetMaps.put(assetId, mapId);
+		}
+		String timestamp = root.getAttribute("timestamp");
+		return new Position(assetId, mapId, Double.parseDouble(root.getAttribute("x")), Double.parseDouble(root.getAttribute("y")),
+				timestamp.length() > 0 ? Long.parseLong(timestamp) : 0);
+	}
+
+	private String get(String path) throws IOException
+	{
+		httpCalls.incrementAndGet();
+		return client.get(path);
+	}
+}
@@ -0,0 +1,460 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Summarises JMeter testResults files such as http/results.txt without
+ * building a DOM.
+ *
+ * The file is memory-mapped in chunks that are scanned in parallel. Each
+ * chunk owns the records whose '<' falls inside it and may read a little
+ * past its end to finish the last one. Both the short httpSample attributes
+ * (t, lt, ts, s, rc, lb, by) and the long sampleResult ones are understood.
+ *
+ * Usage: ResultsAnalyzer [-window seconds] results.txt [baseline.txt]
+ * With a baseline the report is a per-label diff of the two runs.
+ */
+public class ResultsAnalyzer
+{
+	private static final long CHUNK = 256L * 1024 * 1024;
+
+	private static final long OVERLAP = 1024 * 1024;
+
+	private static final byte[] HTTP_SAMPLE = "<httpSample".getBytes();
+
+	private static final byte[] SAMPLE_RESULT = "<sampleResult".getBytes();
+
+	private static final int OTHER = 0, ELAPSED = 1, TIMESTAMP = 2, BYTES = 3, LABEL = 4, SUCCESS = 5, CODE = 6;
+
+	private static final String[][] ATTRIBUTES = {
+		{}, { "t", "time" }, { "ts", "timeStamp" }, { "by", "bytes" }, { "lb", "label" }, { "s", "success" }, { "rc", "responseCode" } };
+
+	private static final double[] PERCENTILES = { 50, 90, 99 };
+
+	/** Totals for one label, plus the same numbers per time window. */
+	public static class LabelStats
+	{
+		long count;
+		long errors;
+		long bytes;
+		long firstTs = Long.MAX_VALUE;
+		long lastTs = Long.MIN_VALUE;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final TreeMap<Long, WindowStats> windows = new TreeMap<Long, WindowStats>();
+
+		void add(LabelStats other)
+		{
+			count += other.count;
+			errors += other.errors;
+			bytes += other.bytes;
+			firstTs = Math.min(firstTs, other.firstTs);
+			lastTs = Math.max(lastTs, other.lastTs);
+			latency.add(other.latency);
+			for (Map.Entry<Long, WindowStats> e : other.windows.entrySet())
+			{
+				WindowStats mine = windows.get(e.getKey());
+				if (mine == null)
+				{
+					windows.put(e.getKey(), e.getValue());
+				}
+				else
+				{
+					mine.add(e.getValue());
+				}
+			}
+		}
+
+		double throughput()
+		{
+			double seconds = (lastTs - firstTs) / 1000.0;
+			return seconds > 0 ? count / seconds : count;
+		}
+
+		double errorRate()
+		{
+			return count == 0 ? 0 : (double) errors / count;
+		}
+	}
+
+	public static class WindowStats
+	{
+		long count;
+		long errors;
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		void add(WindowStats other)
+		{
+			count += other.count;
+			errors += other.errors;
+			latency.add(other.latency);
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		long windowMillis = 60000;
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++)
+		{
+			if ("-window".equals(args[i]) && i + 1 < args.length)
+			{
+				windowMillis = Long.parseLong(args[++i]) * 1000;
+			}
+			else
+			{
+				files.add(args[i]);
+			}
+		}
+		if (files.isEmpty())
+		{
+			System.out.println("Usage: ResultsAnalyzer [-window seconds] results.txt [baseline.txt]");
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		Map<String, LabelStats> run = analyze(new File(files.get(0)), windowMillis);
+		if (files.size() > 1)
+		{
+			Map<String, LabelStats> baseline = analyze(new File(files.get(1)), windowMillis);
+			printDiff(baseline, run);
+		}
+		else
+		{
+			printReport(run, windowMillis);
+		}
+		System.out.println("Analyzed in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	public static Map<String, LabelStats> analyze(File file, final long windowMillis) throws Exception
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+			List<Future<Map<String, LabelStats>>> parts = new ArrayList<Future<Map<String, LabelStats>>>();
+			for (long offset = 0; offset < size; offset += CHUNK)
+			{
+				final long from = offset;
+				final long to = Math.min(size, offset + CHUNK);
+				parts.add(pool.submit(new Callable<Map<String, LabelStats>>()
+				{
+					public Map<String, LabelStats> call() throws IOException
+					{
+						long mapEnd = Math.min(size, to + OVERLAP);
+						MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, mapEnd - from);
+						return scan(buffer, (int) (to - from), windowMillis);
+					}
+				}));
+			}
+
+			Map<String, LabelStats> total = new HashMap<String, LabelStats>();
+			for (Future<Map<String, LabelStats>> part : parts)
+			{
+				for (Map.Entry<String, LabelStats> e : part.get().entrySet())
+				{
+					LabelStats mine = total.get(e.getKey());
+					if (mine == null)
+					{
+						total.put(e.getKey(), e.getValue());
+					}
+					else
+					{
+						mine.add(e.getValue());
+					}
+				}
+			}
+			return total;
+		}
+		finally
+		{
+			pool.shutdown();
+			raf.close();
+		}
+	}
+
+	/**
+	 * Scans one mapped chunk. Only records starting before ownedEnd are
+	 * counted; the rest of the buffer is there to finish the last record.
+	 */
+	static Map<String, LabelStats> scan(MappedByteBuffer buf, int ownedEnd, long windowMillis)
+	{
+		Map<String, LabelStats> stats = new HashMap<String, LabelStats>();
+		int limit = buf.limit();
+		int pos = 0;
+		while (pos < ownedEnd)
+		{
+			if (buf.get(pos) != '<')
+			{
+				pos++;
+				continue;
+			}
+			int attrs;
+			if (matches(buf, pos, HTTP_SAMPLE))
+			{
+				attrs = pos + HTTP_SAMPLE.length;
+			}
+			else if (matches(buf, pos, SAMPLE_RESULT))
+			{
+				attrs = pos + SAMPLE_RESULT.length;
+			}
+			else
+			{
+				pos++;
+				continue;
+			}
+			pos = parseRecord(buf, attrs, limit, stats, windowMillis);
+		}
+		return stats;
+	}
+
+	private static int parseRecord(MappedByteBuffer buf, int pos, int limit, Map<String, LabelStats> stats, long windowMillis)
+	{
+		long elapsed = 0;
+		long timestamp = 0;
+		long bytes = 0;
+		String label = "";
+		boolean success = true;
+		byte code = 0;
+
+		while (pos < limit)
+		{
+			byte b = buf.get(pos);
+			if (b == '>' || b == '/')
+			{
+				break;
+			}
+			if (b == ' ' || b == '\t' || b == '\r' || b == '\n')
+			{
+				pos++;
+				continue;
+			}
+			int nameStart = pos;
+			while (pos < limit && buf.get(pos) != '=') pos++;
+			int nameEnd = pos;
+			pos++;
+			while (pos < limit && buf.get(pos) != '"') pos++;
+			int valueStart = ++pos;
+			while (pos < limit && buf.get(pos) != '"') pos++;
+			int valueEnd = pos++;
+			if (pos > limit)
+			{
+				break;
+			}
+
+			switch (attribute(buf, nameStart, nameEnd))
+			{
+			case ELAPSED:
+				elapsed = number(buf, valueStart, valueEnd);
+				break;
+			case TIMESTAMP:
+				timestamp = number(buf, valueStart, valueEnd);
+				break;
+			case BYTES:
+				bytes = number(buf, valueStart, valueEnd);
+				break;
+			case LABEL:
+				label = unescape(ascii(buf, valueStart, valueEnd));
+				break;
+			case SUCCESS:
+				success = buf.get(valueStart) == 't';
+				break;
+			case CODE:
+				code = buf.get(valueStart);
+				break;
+			default:
+				break;
+			}
+		}
+
+		LabelStats labelStats = stats.get(label);
+		if (labelStats == null)
+		{
+			labelStats = new LabelStats();
+			stats.put(label, labelStats);
+		}
+		boolean error = !success || code >= '4';
+		labelStats.count++;
+		if (error) labelStats.errors++;
+		labelStats.bytes += bytes;
+		labelStats.latency.record(elapsed);
+		if (timestamp > 0)
+		{
+			labelStats.firstTs = Math.min(labelStats.firstTs, timestamp);
+			labelStats.lastTs = Math.max(labelStats.lastTs, timestamp + elapsed);
+			Long window = Long.valueOf(timestamp - timestamp % windowMillis);
+			WindowStats w = labelStats.windows.get(window);
+			if (w == null)
+			{
+				w = new WindowStats();
+				labelStats.windows.put(window, w);
+			}
+			w.count++;
+			if (error) w.errors++;
+			w.latency.record(elapsed);
+		}
+		return pos;
+	}
+
+	private static boolean matches(MappedByteBuffer buf, int pos, byte[] token)
+	{
+		if (pos + token.length >= buf.limit())
+		{
+			return false;
+		}
+		for (int i = 0; i < token.length; i++)
+		{
+			if (buf.get(pos + i) != token[i])
+			{
+				return false;
+			}
+		}
+		byte next = buf.get(pos + token.length);
+		return next == ' ' || next == '\t' || next == '\r' || next == '\n';
+	}
+
+	/**
+	 * Maps an attribute name to one of the constants above by comparing the
+	 * mapped bytes directly, so no String is made for names we skip.
+	 */
+	private static int attribute(MappedByteBuffer buf, int from, int to)
+	{
+		int length = to - from;
+		for (int id = 1; id < ATTRIBUTES.length; id++)
+		{
+			for (String name : ATTRIBUTES[id])
+			{
+				if (name.length() != length)
+				{
+					continue;
+				}
+				int i = 0;
+				while (i < length && buf.get(from + i) == name.charAt(i)) i++;
+				if (i == length)
+				{
+					return id;
+				}
+			}
+		}
+		return OTHER;
+	}
+
+	private static long number(MappedByteBuffer buf, int from, int to)
+	{
+		long value = 0;
+		for (int i = from; i < to; i++)
+		{
+			byte b = buf.get(i);
+			if (b < '0' || b > '9') break;
+			value = value * 10 + (b - '0');
+		}
+		return value;
+	}
+
+	private static String ascii(MappedByteBuffer buf, int from, int to)
+	{
+		byte[] bytes = new byte[to - from];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			bytes[i] = buf.get(from + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String unescape(String s)
+	{
+		if (s.indexOf('&') < 0)
+		{
+			return s;
+		}
+		return s.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+	}
+
+	static void printReport(Map<String, LabelStats> stats, long windowMillis)
+	{
+		System.out.println("label\tcount\terrors%\treq/s\tKB/s\tmean\tp50\tp90\tp99\tmax");
+		for (String label : new TreeSet<String>(stats.keySet()))
+		{
+			LabelStats s = stats.get(label);
+			double seconds = Math.max(1, (s.lastTs - s.firstTs) / 1000.0);
+			StringBuffer line = new StringBuffer();
+			line.append(label).append('\t').append(s.count)
+				.append('\t').append(String.format("%.2f", 100 * s.errorRate()))
+				.append('\t').append(String.format("%.1f", s.throughput()))
+				.append('\t').append(String.format("%.1f", s.bytes / 1024.0 / seconds))
+				.append('\t').append(String.format("%.1f", s.latency.mean()));
+			for (double p : PERCENTILES)
+			{
+				line.append('\t').append(s.latency.percentile(p));
+			}
+			line.append('\t').append(s.latency.max());
+			System.out.println(line);
+		}
+
+		System.out.println();
+		System.out.println("label\twindow\tcount\terrors%\treq/s\tp50\tp90\tp99");
+		for (String label : new TreeSet<String>(stats.keySet()))
+		{
+			for (Map.Entry<Long, WindowStats> e : stats.get(label).windows.entrySet())
+			{
+				WindowStats w = e.getValue();
+				StringBuffer line = new StringBuffer();
+				line.append(label).append('\t').append(e.getKey())
+					.append('\t').append(w.count)
+					.append('\t').append(String.format("%.2f", 100.0 * w.errors / w.count))
+					.append('\t').append(String.format("%.1f", w.count * 1000.0 / windowMillis));
+				for (double p : PERCENTILES)
+				{
+					line.append('\t').append(w.latency.percentile(p));
+				}
+				System.out.println(line);
+			}
+		}
+	}
+
+	static void printDiff(Map<String, LabelStats> baseline, Map<String, LabelStats> run)
+	{
+		TreeSet<String> labels = new TreeSet<String>(baseline.keySet());
+		labels.addAll(run.keySet());
+		System.out.println("label\treq/s (base -> run)\terrors% (base -> run)\tp50\tp90\tp99");
+		for (String label : labels)
+		{
+			LabelStats a = baseline.get(label);
+			LabelStats b = run.get(label);
+			if (a == null || b == null)
+			{
+				System.out.println(label + "\tonly in " + (a == null ? "run" : "baseline"));
+				continue;
+			}
+			StringBuffer line = new StringBuffer();
+			line.append(label)
+				.append('\t').append(String.format("%.1f -> %.1f", a.throughput(), b.throughput()))
+				.append('\t').append(String.format("%.2f -> %.2f", 100 * a.errorRate(), 100 * b.errorRate()));
+			for (double p : PERCENTILES)
+			{
+				long pa = a.latency.percentile(p);
+				long pb = b.latency.percentile(p);
+				line.append('\t').append(pa).append(" -> ").append(pb);
+				if (pa > 0)
+				{
+					line.append(String.format(" (%+.0f%%)", 100.0 * (pb - pa) / pa));
+				}
+			}
+			System.out.println(line);
+		}
+	}
+}
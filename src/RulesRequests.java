@@ -1,16 +1,8 @@
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.FileReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.io.StringWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
-import java.util.List;
-import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
@@ -20,13 +12,14 @@ import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 public class RulesRequests
 {
 	
 	public static String cookie;
 	
+	private static VisionClient client;
+	
 	private static String server = "http://localhost:7070";
 	
 	private static String newAssetId;
@@ -52,56 +45,52 @@ public class RulesRequests
 		//bindSensor(server+"/assets/4e3b90b9a4ace05218ed730a/tag",tagId);
 	}
 	
+	/**
+	 * Every helper goes through this one VisionClient, so these calls emit
+	 * vision.Request events like the load tools do. cookie mirrors its
+	 * session for the tools that still read it.
+	 */
+	private static VisionClient client(String target) throws IOException
+	{
+		String origin = VisionClient.split(target)[0];
+		if (client == null || !client.getServer().equals(origin))
+		{
+			client = new VisionClient(origin);
+		}
+		return client;
+	}
+
+	private static String path(String target) throws IOException
+	{
+		return VisionClient.split(target)[1];
+	}
+
+	private static String readFile(String filepath) throws IOException
+	{
+        BufferedReader in = new BufferedReader(new FileReader(filepath));
+        StringBuffer strbuffer = new StringBuffer();
+        String str;
+        while ((str = in.readLine()) != null) 
+        {
+            strbuffer.append(str);
+        }
+        in.close();
+        return strbuffer.toString();
+	}
+	
 	public static void bindSensor(String target, String tagId)
 	{
 	   	try
     	{
 	   		System.out.println(" The target is " +target);
-            BufferedReader in = new BufferedReader(new FileReader("C:\\Users\\pranav.modi\\Desktop\\http\\bindsensor.txt"));
-            StringBuffer strbuffer = new StringBuffer();
-            String str;
-            while ((str = in.readLine()) != null) 
-            {
-                strbuffer.append(str);
-            }
-            System.out.println("the data from file is : "+strbuffer);
-            in.close();
-            String content = strbuffer.toString();
+            String content = readFile("C:\\Users\\pranav.modi\\Desktop\\http\\bindsensor.txt");
+            System.out.println("the data from file is : "+content);
 
 
         	System.out.println("About to post\nURL: "+target+ "\ncontent: " + content);
-        	  StringBuffer response = new StringBuffer();
-        	  URL url = new URL(target);
-        	  HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-        	  
-        	  conn.setRequestMethod("POST");
-        	  //conn.setRequestProperty("X-Vision-REST-Method", "PUT");
-        	  conn.setRequestProperty("Referer",server+"/Vision.swf/[[DYNAMIC]]/6");
-        	  
-        	  conn.setRequestProperty("Content-Type", "application/xml");
-        	  conn.setRequestProperty("Cookie", cookie);
-        	  //conn.setRequestProperty( "User-Agent", "Mozilla/4.0" );
-        	  conn.setRequestProperty("Content-Length", content.length()+"");
-        	  conn.setDoInput (true);
-        	  conn.setDoOutput (true);
-        	  conn.connect();
-
-        	  DataOutputStream out = new DataOutputStream (conn.getOutputStream ());
-        	  // Write out the bytes of the content string to the stream.
-        	  out.writeBytes(content);
-        	  out.flush();
-        	  out.close();
-        	  
-        	  BufferedReader in1 = new BufferedReader (new InputStreamReader(conn.getInputStream ()));
-        	  String temp;
-        	  while ((temp = in1.readLine()) != null)
-        	  {
-        	    response.append(temp);
-        	  }
-        	  temp = null;
-        	  in1.close ();
-        	  System.out.println("Server response:\n'" + response.toString() + "'");
-        	  extractAssetId(response.toString());
+        	  String response = client(target).post(path(target), content);
+        	  System.out.println("Server response:\n'" + response + "'");
+        	  extractAssetId(response);
         	 
     	}
     	catch(Exception e)
@@ -114,23 +103,9 @@ public class RulesRequests
 	  {
 		   	try
 	    	{
-	            BufferedReader in = new BufferedReader(new FileReader(filepath));
-	            StringBuffer strbuffer = new StringBuffer();
-	            String str;
-	            while ((str = in.readLine()) != null) 
-	            {
-	                strbuffer.append(str);
-	            }
-	            //System.out.println("the data from file is : "+strbuffer);
-	            in.close();
-	            String content = strbuffer.toString();
+	            String content = readFile(filepath);
 	            
-	  		  DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-			  DocumentBuilder db = dbf.newDocumentBuilder();
-			  InputSource inStream = new org.xml.sax.InputSource();
-			    
-			  inStream.setCharacterStream(new java.io.StringReader(content));
-			  Document doc = db.parse(inStream);
+			  Document doc = VisionClient.parse(content, "RulesRequests.postAssets");
 			  Element root = doc.getDocumentElement();
 			  System.out.println("the root elements is : "+root);
 			  NodeList propertyList = root.getElementsByTagName("property");
@@ -153,38 +128,9 @@ public class RulesRequests
 			  
 			  
 	        	System.out.println("About to post\nURL: "+target+ "\ncontent: " + content);
-	        	  StringBuffer response = new StringBuffer();
-	        	  URL url = new URL(target);
-	        	  HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-	        	  
-	        	  conn.setRequestMethod("POST");
-	        	  //conn.setRequestProperty("X-Vision-REST-Method", "PUT");
-	        	  conn.setRequestProperty("Referer",server+"/Vision.swf/[[DYNAMIC]]/6");
-	        	  
-	        	  conn.setRequestProperty("Content-Type", "application/xml");
-	        	  conn.setRequestProperty("Cookie", cookie);
-	        	  //conn.setRequestProperty( "User-Agent", "Mozilla/4.0" );
-	        	  conn.setRequestProperty("Content-Length", content.length()+"");
-	        	  conn.setDoInput (true);
-	        	  conn.setDoOutput (true);
-	        	  conn.connect();
-
-	        	  DataOutputStream out = new DataOutputStream (conn.getOutputStream ());
-	        	  // Write out the bytes of the content string to the stream.
-	        	  out.writeBytes(content);
-	        	  out.flush();
-	        	  out.close();
-	        	  
-	        	  BufferedReader in1 = new BufferedReader (new InputStreamReader(conn.getInputStream ()));
-	        	  String temp;
-	        	  while ((temp = in1.readLine()) != null)
-	        	  {
-	        	    response.append(temp);
-	        	  }
-	        	  temp = null;
-	        	  in1.close ();
-	        	  System.out.println("Server response:\n'" + response.toString() + "'");
-	        	  extractAssetId(response.toString());
+	        	  String response = client(target).post(path(target), content);
+	        	  System.out.println("Server response:\n'" + response + "'");
+	        	  extractAssetId(response);
 	        	 
 	    	}
 	    	catch(Exception e)
@@ -198,12 +144,7 @@ public class RulesRequests
 	  {
 		  try
 		  {
-			  DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-			  DocumentBuilder db = dbf.newDocumentBuilder();
-			  InputSource inStream = new org.xml.sax.InputSource();
-			    
-			  inStream.setCharacterStream(new java.io.StringReader(response));
-			  Document doc = db.parse(inStream);
+			  Document doc = VisionClient.parse(response, "RulesRequests.extractAssetId");
 			  Element root = doc.getDocumentElement();
 
 			  newAssetId = root.getAttribute("id");
@@ -220,62 +161,10 @@ public class RulesRequests
 	  {
 	    	try
 	    	{
-	            BufferedReader in = new BufferedReader(new FileReader(filepath));
-	            StringBuffer strbuffer = new StringBuffer();
-	            String str;
-	            while ((str = in.readLine()) != null) 
-	            {
-	                strbuffer.append(str);
-	            }
-	            //System.out.println("the data from file is : "+strbuffer);
-	            in.close();
-	            String content = strbuffer.toString();
-	        	System.out.println("About to post\nURL: "+target+ "\ncontent: " + content);
-	        	  StringBuffer response = new StringBuffer();
-	        	  URL url = new URL(target);
-	        	  HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-	        	  
-	        	  conn.setRequestMethod("POST");
-	        	  conn.setRequestProperty("X-Vision-REST-Method", "PUT");
-	        	  
-	        	  conn.setRequestProperty("Content-Type", "application/xml");
-	        	  conn.setRequestProperty( "User-Agent", "Mozilla/4.0" );
-	        	  conn.setRequestProperty("Content-Length", content.length()+"");
-	
-	        	  
-	        	  conn.setDoInput (true);
-	        	  conn.setDoOutput (true);
-	
-	        	  conn.connect();
-	
-	        	  DataOutputStream out = new DataOutputStream (conn.getOutputStream ());
-	        	  // Write out the bytes of the content string to the stream.
-	        	  out.writeBytes(content);
-	        	  out.flush ();
-	        	  out.close ();
-	        	  
-	        	  
-	        	  // Read response from the input stream.
-	        	  Map<String, List<String>> headers = conn.getHeaderFields(); 
-	        	  
-	        	  
-	        	  List<String> values = headers.get("Set-Cookie"); 
-	        	  
-	        	  String cookieVal = values.get(0);
-	        	 //System.out.println("cookieval : "+cookieVal);
-	        	  
-	        	  cookie = cookieVal.split(";")[0];
-	        	  
-	        	  //System.out.println("cookie is : "+cookie);
-	        	  
-	        	  BufferedReader in1 = new BufferedReader (new InputStreamReader(conn.getInputStream ()));
-	        	  String temp;
-	        	  while ((temp = in1.readLine()) != null){
-	        	    response.append(temp);
-	        	   }
-	        	  temp = null;
-	        	  in1.close ();
-	        	  System.out.println("Server response:\n'" + response.toString() + "'");	        	 
+	        	System.out.println("About to log in\nURL: "+target);
+	        	client(target).login(filepath);
+	        	cookie = client.getCookie();
+	        	System.out.println("Logged in to "+client.getServer());
 	    	}
 	    	catch(Exception e)
 	    	{
@@ -287,17 +176,7 @@ public class RulesRequests
 	    {
 	    	try
 	    	{
-	            URL vision = new URL(url);
-	            URLConnection yc = vision.openConnection();
-	            yc.setRequestProperty("X-Vision-REST-Method", "PUT");
-	            yc.setRequestProperty("Cookie", cookie);
-	            BufferedReader in = new BufferedReader(new InputStreamReader(yc.getInputStream()));
-	            StringBuffer data = new StringBuffer();
-	            String inputLine;
-	            while ((inputLine = in.readLine()) != null) 
-	                data.append(inputLine);
-	            in.close();
-	            System.out.println("Data : "+data);
+	            System.out.println("Data : "+client(url).get(path(url)));
 	    	}
 	    	catch (Exception e)
 	    	{
@@ -307,158 +186,27 @@ public class RulesRequests
 	
 	  public static void sendMessage(String target, String filepath)
 	  {
-	    	try
-	    	{
-	            BufferedReader in = new BufferedReader(new FileReader(filepath));
-	            StringBuffer strbuffer = new StringBuffer();
-	            String str;
-	            while ((str = in.readLine()) != null) 
-	            {
-	                strbuffer.append(str);
-	            }
-	            //System.out.println("the data from file is : "+strbuffer);
-	            in.close();
-	            String content = strbuffer.toString();
-	            //content="";
-	        	System.out.println("About to post\nURL: "+target+ "\ncontent: " + content);
-	        	  StringBuffer response = new StringBuffer();
-	        	  URL url = new URL(target);
-	        	  HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-	        	  
-	        	  conn.setRequestMethod("POST");
-	        	  //conn.setRequestProperty("X-Vision-REST-Method", "PUT");
-	        	  conn.setRequestProperty("Cookie", cookie);
-	        	  conn.setRequestProperty("Content-Type", "application/xml");
-	        	  conn.setRequestProperty( "User-Agent", "Mozilla/4.0" );
-	        	  conn.setRequestProperty("Content-Length", content.length()+"");
-
-	        	  conn.setDoInput (true);
-	        	  conn.setDoOutput (true);
-
-	        	  conn.connect();
-
-	        	  DataOutputStream out = new DataOutputStream (conn.getOutputStream ());
-	        	  // Write out the bytes of the content string to the stream.
-	        	  out.writeBytes(content);
-	        	  out.flush ();
-	        	  out.close ();
-
-	        	  BufferedReader in1 = new BufferedReader (new InputStreamReader(conn.getInputStream()));
-	        	  String temp;
-	        	  while ((temp = in1.readLine()) != null){
-	        	    response.append(temp);
-	        	   }
-	        	  temp = null;
-	        	  in1.close ();
-	        	  System.out.println("Server response:\n'" + response.toString() + "'");
-	        	 
-	    	}
-	    	catch(Exception e)
-	    	{
-	    		e.printStackTrace();
-	    	}
+		  postFile(target, filepath);
 	  }
 	  
 	  public static void createRule(String target, String filepath)
 	  {
-	    	try
-	    	{
-	            BufferedReader in = new BufferedReader(new FileReader(filepath));
-	            StringBuffer strbuffer = new StringBuffer();
-	            String str;
-	            while ((str = in.readLine()) != null) 
-	            {
-	                strbuffer.append(str);
-	            }
-	            //System.out.println("the data from file is : "+strbuffer);
-	            in.close();
-	            String content = strbuffer.toString();
-	            //content="";
-	        	System.out.println("About to post\nURL: "+target+ "\ncontent: " + content);
-	        	  StringBuffer response = new StringBuffer();
-	        	  URL url = new URL(target);
-	        	  HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-	        	  
-	        	  conn.setRequestMethod("POST");
-	        	  //conn.setRequestProperty("X-Vision-REST-Method", "PUT");
-	        	  conn.setRequestProperty("Cookie", cookie);
-	        	  conn.setRequestProperty("Content-Type", "application/xml");
-	        	  conn.setRequestProperty( "User-Agent", "Mozilla/4.0" );
-	        	  conn.setRequestProperty("Content-Length", content.length()+"");
-
-	        	  conn.setDoInput (true);
-	        	  conn.setDoOutput (true);
-
-	        	  conn.connect();
-
-	        	  DataOutputStream out = new DataOutputStream (conn.getOutputStream ());
-	        	  // Write out the bytes of the content string to the stream.
-	        	  out.writeBytes(content);
-	        	  out.flush ();
-	        	  out.close ();
-
-	        	  BufferedReader in1 = new BufferedReader (new InputStreamReader(conn.getInputStream()));
-	        	  String temp;
-	        	  while ((temp = in1.readLine()) != null){
-	        	    response.append(temp);
-	        	   }
-	        	  temp = null;
-	        	  in1.close ();
-	        	  System.out.println("Server response:\n'" + response.toString() + "'");
-	        	 
-	    	}
-	    	catch(Exception e)
-	    	{
-	    		e.printStackTrace();
-	    	}
+		  postFile(target, filepath);
 	  }
 	  
 	  public static void createAssetType(String target, String filepath)
+	  {
+		  postFile(target, filepath);
+	  }
+
+	  private static void postFile(String target, String filepath)
 	  {
 	    	try
 	    	{
-	            BufferedReader in = new BufferedReader(new FileReader(filepath));
-	            StringBuffer strbuffer = new StringBuffer();
-	            String str;
-	            while ((str = in.readLine()) != null) 
-	            {
-	                strbuffer.append(str);
-	            }
-	            //System.out.println("the data from file is : "+strbuffer);
-	            in.close();
-	            String content = strbuffer.toString();
-	            //content="";
+	            String content = readFile(filepath);
 	        	System.out.println("About to post\nURL: "+target+ "\ncontent: " + content);
-	        	  StringBuffer response = new StringBuffer();
-	        	  URL url = new URL(target);
-	        	  HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-	        	  
-	        	  conn.setRequestMethod("POST");
-	        	  //conn.setRequestProperty("X-Vision-REST-Method", "PUT");
-	        	  conn.setRequestProperty("Cookie", cookie);
-	        	  conn.setRequestProperty("Content-Type", "application/xml");
-	        	  conn.setRequestProperty( "User-Agent", "Mozilla/4.0" );
-	        	  conn.setRequestProperty("Content-Length", content.length()+"");
-
-	        	  conn.setDoInput (true);
-	        	  conn.setDoOutput (true);
-
-	        	  conn.connect();
-
-	        	  DataOutputStream out = new DataOutputStream (conn.getOutputStream ());
-	        	  // Write out the bytes of the content string to the stream.
-	        	  out.writeBytes(content);
-	        	  out.flush ();
-	        	  out.close ();
-
-	        	  BufferedReader in1 = new BufferedReader (new InputStreamReader(conn.getInputStream()));
-	        	  String temp;
-	        	  while ((temp = in1.readLine()) != null){
-	        	    response.append(temp);
-	        	   }
-	        	  temp = null;
-	        	  in1.close ();
-	        	  System.out.println("Server response:\n'" + response.toString() + "'");
+	        	  String response = client(target).post(path(target), content);
+	        	  System.out.println("Server response:\n'" + response + "'");
 	        	 
 	    	}
 	    	catch(Exception e)
@@ -466,4 +214,4 @@ public class RulesRequests
 	    		e.printStackTrace();
 	    	}
 	  }
-}
\ No newline at end of file
+}
@@ -0,0 +1,535 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Runs a load scenario described in a text file instead of in httprequests'
+ * main, so a new load shape is a new file rather than a recompile.
+ *
+ * The file has settings, data sources and steps, one per line; indented
+ * lines belong to the step above them and # starts a comment:
+ *
+ *   server      http://localhost:7070
+ *   users       10
+ *   iterations  100          (per user; or: duration 300, in seconds)
+ *   rate        20           (iterations per second over all users; 0 = no limit)
+ *   data tags   tags.csv     (header line, then one row per iteration: ${tags.id})
+ *   data n      1000..1999   (a counter: ${n})
+ *   login       post.txt
+ *
+ *   setup assetType POST /assetTypes
+ *     body <assetType name="Pump${run}"> ... </assetType>
+ *     extract typeId=@id
+ *     extract propertyId=property@id
+ *
+ *   step bind POST /assets/${assetId}/tag
+ *     file bind.xml
+ *     think 200
+ *
+ * A step's method is GET, POST or DELETE; an update is a POST whose
+ * body carries _method="PUT", the way the Vision client sends it.
+ *
+ * Every user logs in, runs the setup steps once and then the steps once per
+ * iteration. Paths and bodies are templates over ${...} variables: user,
+ * iteration and run (the start time, for unique names), the current data
+ * rows, and whatever earlier steps extracted from their responses.
+ * "extract name=@attr" takes an attribute of the root element and
+ * "name=element@attr" one of the first element of that name. A failed step
+ * ends its iteration, since later steps usually need what it would have
+ * extracted. Files are relative to the scenario file, and name=value
+ * arguments override its settings.
+ *
+ * Usage: ScenarioRunner scenario.txt [name=value ...]
+ */
+public class ScenarioRunner
+{
+	private static final Pattern VARIABLE = Pattern.compile("\\$\\{([A-Za-z0-9_.]+)\\}");
+
+	private static final Pattern RANGE = Pattern.compile("(\\d+)\\.\\.(\\d+)");
+
+	private final Map<String, String> settings = new HashMap<String, String>();
+
+	private final List<DataSource> data = new ArrayList<DataSource>();
+
+	private final List<Step> setup = new ArrayList<Step>();
+
+	private final List<Step> steps = new ArrayList<Step>();
+
+	private final DistributedLoad.Results results = new DistributedLoad.Results();
+
+	private final AtomicLong completed = new AtomicLong();
+
+	private File loginFile;
+
+	private long nextSlot;
+
+	/** One request of the scenario. */
+	static class Step
+	{
+		String name;
+		String method;
+		String path;
+		String body;
+		long thinkMillis;
+		final List<String[]> extracts = new ArrayList<String[]>();
+	}
+
+	/**
+	 * Rows handed out to iterations in turn, shared by all users and wrapping
+	 * around at the end; a range has a single unnamed column.
+	 */
+	static class DataSource
+	{
+		String name;
+		String[] columns;
+		final List<String[]> rows = new ArrayList<String[]>();
+		long rangeFrom;
+		long rangeSize;
+		final AtomicLong cursor = new AtomicLong();
+
+		void next(Map<String, String> vars)
+		{
+			long n = cursor.getAndIncrement();
+			if (columns == null)
+			{
+				vars.put(name, String.valueOf(rangeFrom + n % rangeSize));
+				return;
+			}
+			String[] row = rows.get((int) (n % rows.size()));
+			for (int i = 0; i < columns.length; i++)
+			{
+				vars.put(name + "." + columns[i], i < row.length ? row[i] : "");
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 1)
+		{
+			System.out.println("Usage: ScenarioRunner scenario.txt [name=value ...]");
+			return;
+		}
+		ScenarioRunner runner = new ScenarioRunner();
+		runner.load(new File(args[0]));
+		for (int i = 1; i < args.length; i++)
+		{
+			int eq = args[i].indexOf('=');
+			if (eq > 0)
+			{
+				runner.settings.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+			}
+		}
+		runner.run();
+	}
+
+	public void load(File scenario) throws IOException
+	{
+		File dir = scenario.getAbsoluteFile().getParentFile();
+		BufferedReader in = new BufferedReader(new FileReader(scenario));
+		try
+		{
+			Step step = null;
+			String line;
+			int number = 0;
+			while ((line = in.readLine()) != null)
+			{
+				number++;
+				String where = scenario.getName() + ":" + number + ": ";
+				boolean indented = line.startsWith(" ") || line.startsWith("\t");
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+				{
+					continue;
+				}
+				String[] words = line.split("\\s+", 2);
+				String keyword = words[0];
+				String rest = words.length > 1 ? words[1].trim() : "";
+
+				if (indented)
+				{
+					if (step == null)
+					{
+						throw new IOException(where + "indented line outside a step");
+					}
+					if ("body".equals(keyword))
+					{
+						step.body = rest;
+					}
+					else if ("file".equals(keyword))
+					{
+						step.body = readFile(resolve(dir, rest));
+					}
+					else if ("extract".equals(keyword))
+					{
+						int eq = rest.indexOf('=');
+						int at = rest.indexOf('@', eq);
+						if (eq <= 0 || at < 0)
+						{
+							throw new IOException(where + "expected extract name=@attr or name=element@attr");
+						}
+						step.extracts.add(new String[] { rest.substring(0, eq), rest.substring(eq + 1, at), rest.substring(at + 1) });
+					}
+					else if ("think".equals(keyword))
+					{
+						step.thinkMillis = Long.parseLong(rest);
+					}
+					else
+					{
+						throw new IOException(where + "unknown step option " + keyword);
+					}
+					continue;
+				}
+
+				step = null;
+				if ("setup".equals(keyword) || "step".equals(keyword))
+				{
+					String[] parts = rest.split("\\s+");
+					if (parts.length != 3)
+					{
+						throw new IOException(where + "expected " + keyword + " name METHOD path");
+					}
+					step = new Step();
+					step.name = parts[0];
+					step.method = parts[1].toUpperCase();
+					if (!"GET".equals(step.method) && !"POST".equals(step.method) && !"DELETE".equals(step.method))
+					{
+						// VisionClient only sends these; Vision takes a PUT as a POST with _method="PUT" in the body
+						throw new IOException(where + "unsupported method " + parts[1] + "; expected GET, POST or DELETE");
+					}
+					step.path = parts[2];
+					("setup".equals(keyword) ? setup : steps).add(step);
+				}
+				else if ("data".equals(keyword))
+				{
+					String[] parts = rest.split("\\s+");
+					if (parts.length != 2)
+					{
+						throw new IOException(where + "expected data name file.csv or data name from..to");
+					}
+					data.add(dataSource(parts[0], parts[1], dir, where));
+				}
+				else if ("login".equals(keyword))
+				{
+					loginFile = resolve(dir, rest);
+				}
+				else if ("server".equals(keyword) || "users".equals(keyword) || "iterations".equals(keyword)
+						|| "duration".equals(keyword) || "rate".equals(keyword))
+				{
+					settings.put(keyword, rest);
+				}
+				else
+				{
+					throw new IOException(where + "unknown keyword " + keyword);
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	public void run() throws InterruptedException
+	{
+		final String server = setting("server", "http://localhost:7070");
+		int users = Integer.parseInt(setting("users", "1"));
+		final long iterations = Long.parseLong(setting("iterations", settings.containsKey("duration") ? "0" : "1"));
+		final long deadline = settings.containsKey("duration")
+				? System.currentTimeMillis() + (long) (Double.parseDouble(settings.get("duration")) * 1000) : Long.MAX_VALUE;
+		double rate = Double.parseDouble(setting("rate", "0"));
+		final long interval = rate > 0 ? (long) (1000000000L / rate) : 0;
+		final String runId = String.valueOf(System.currentTimeMillis());
+
+		System.out.println("Running " + steps.size() + " steps x " + (iterations > 0 ? iterations + " iterations" : "until the deadline")
+				+ " for " + users + " users against " + server + (rate > 0 ? " at " + rate + " iterations/s" : ""));
+		long start = System.currentTimeMillis();
+		nextSlot = System.nanoTime();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int u = 0; u < users; u++)
+		{
+			final int user = u;
+			Thread t = new Thread("scenario-user-" + u)
+			{
+				public void run()
+				{
+					runUser(server, user, runId, iterations, deadline, interval);
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads)
+		{
+			t.join();
+		}
+		results.elapsedMillis = System.currentTimeMillis() - start;
+		System.out.println(completed.get() + " iterations completed in " + results.elapsedMillis + " ms");
+		results.print();
+	}
+
+	private void runUser(String server, int user, String runId, long iterations, long deadline, long interval)
+	{
+		VisionClient client = new VisionClient(server);
+		Map<String, String> vars = new HashMap<String, String>();
+		vars.put("user", String.valueOf(user));
+		vars.put("run", runId);
+		if (loginFile != null)
+		{
+			long start = System.currentTimeMillis();
+			try
+			{
+				client.login(loginFile.getPath());
+				results.record("login", System.currentTimeMillis() - start, false);
+			}
+			catch (IOException e)
+			{
+				results.record("login", System.currentTimeMillis() - start, true);
+				System.out.println("User " + user + " could not log in: " + e.getMessage());
+				return;
+			}
+		}
+		for (Step step : setup)
+		{
+			if (!execute(client, step, vars))
+			{
+				System.out.println("User " + user + " stopped: setup step " + step.name + " failed");
+				return;
+			}
+		}
+		for (long i = 0; (iterations == 0 || i < iterations) && System.currentTimeMillis() < deadline; i++)
+		{
+			if (interval > 0 && !pace(interval, deadline))
+			{
+				break;
+			}
+			Map<String, String> iterationVars = new HashMap<String, String>(vars);
+			iterationVars.put("iteration", String.valueOf(i));
+			for (DataSource source : data)
+			{
+				source.next(iterationVars);
+			}
+			boolean ok = true;
+			for (Step step : steps)
+			{
+				if (!execute(client, step, iterationVars))
+				{
+					ok = false;
+					break;
+				}
+			}
+			if (ok)
+			{
+				completed.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Waits for this user's share of the rate: every iteration claims the
+	 * next free slot, so the total stays at the rate however many users
+	 * there are. Returns false if the slot lies past the deadline.
+	 */
+	private boolean pace(long interval, long deadline)
+	{
+		long slot;
+		synchronized (this)
+		{
+			slot = Math.max(nextSlot, System.nanoTime());
+			nextSlot = slot + interval;
+		}
+		long wait = slot - System.nanoTime();
+		if (deadline != Long.MAX_VALUE && System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(wait) >= deadline)
+		{
+			return false;
+		}
+		if (wait > 0)
+		{
+			try
+			{
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			catch (InterruptedException e)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Runs one step, recording its time and extracting into vars. */
+	private boolean execute(VisionClient client, Step step, Map<String, String> vars)
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			String path = expand(step.path, vars, step);
+			String body = step.body != null ? expand(step.body, vars, step) : null;
+			String response;
+			if ("GET".equals(step.method))
+			{
+				response = client.get(path);
+			}
+			else if ("DELETE".equals(step.method))
+			{
+				response = client.delete(path);
+			}
+			else
+			{
+				response = client.post(path, body != null ? body : "");
+			}
+			if (!step.extracts.isEmpty())
+			{
+				extract(step, response, vars);
+			}
+			results.record(step.name, System.currentTimeMillis() - start, false);
+		}
+		catch (IOException e)
+		{
+			results.record(step.name, System.currentTimeMillis() - start, true);
+			return false;
+		}
+		if (step.thinkMillis > 0)
+		{
+			try
+			{
+				Thread.sleep(step.thinkMillis);
+			}
+			catch (InterruptedException e)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void extract(Step step, String response, Map<String, String> vars) throws IOException
+	{
+		Element root = VisionClient.parse(response, "ScenarioRunner").getDocumentElement();
+		for (String[] extract : step.extracts)
+		{
+			Element element = root;
+			if (extract[1].length() > 0 && !extract[1].equals(root.getTagName()))
+			{
+				NodeList found = root.getElementsByTagName(extract[1]);
+				element = found.getLength() > 0 ? (Element) found.item(0) : null;
+			}
+			if (element == null || !element.hasAttribute(extract[2]))
+			{
+				throw new IOException("Step " + step.name + ": no " + extract[1] + "@" + extract[2] + " in response");
+			}
+			vars.put(extract[0], element.getAttribute(extract[2]));
+		}
+	}
+
+	static String expand(String template, Map<String, String> vars, Step step) throws IOException
+	{
+		if (template.indexOf("${") < 0)
+		{
+			return template;
+		}
+		Matcher m = VARIABLE.matcher(template);
+		StringBuffer out = new StringBuffer(template.length() + 32);
+		while (m.find())
+		{
+			String value = vars.get(m.group(1));
+			if (value == null)
+			{
+				throw new IOException("Step " + step.name + ": no value for ${" + m.group(1) + "}");
+			}
+			m.appendReplacement(out, Matcher.quoteReplacement(value));
+		}
+		m.appendTail(out);
+		return out.toString();
+	}
+
+	private static DataSource dataSource(String name, String spec, File dir, String where) throws IOException
+	{
+		DataSource source = new DataSource();
+		source.name = name;
+		Matcher range = RANGE.matcher(spec);
+		if (range.matches())
+		{
+			source.rangeFrom = Long.parseLong(range.group(1));
+			source.rangeSize = Long.parseLong(range.group(2)) - source.rangeFrom + 1;
+			if (source.rangeSize <= 0)
+			{
+				throw new IOException(where + "empty range " + spec);
+			}
+			return source;
+		}
+		BufferedReader in = new BufferedReader(new FileReader(resolve(dir, spec)));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				if (line.trim().length() == 0)
+				{
+					continue;
+				}
+				String[] fields = line.split(line.indexOf('\t') >= 0 ? "\t" : ",", -1);
+				if (source.columns == null)
+				{
+					source.columns = fields;
+				}
+				else
+				{
+					source.rows.add(fields);
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		if (source.rows.isEmpty())
+		{
+			throw new IOException(where + spec + " has no data rows");
+		}
+		return source;
+	}
+
+	private String setting(String name, String defaultValue)
+	{
+		String value = settings.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	private static File resolve(File dir, String path)
+	{
+		File file = new File(path);
+		return file.isAbsolute() ? file : new File(dir, path);
+	}
+
+	private static String readFile(File file) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		StringBuffer content = new StringBuffer();
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				content.append(line).append('\n');
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return content.toString();
+	}
+}
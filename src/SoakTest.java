@@ -0,0 +1,466 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Long-running mixed workload that watches the client JVM for leaks.
+ *
+ * Virtual users keep issuing a weighted mix of the requests the other
+ * tools make (tag and asset lists, rules, tag search, event search). Every
+ * sampling period the JVM's open file descriptors, open sockets, heap after
+ * the last GC, allocation rate and GC time are read from the management
+ * beans and appended to soak-metrics.tsv; latencies go to soak-latency.tsv
+ * in the same directory. At the end each series is checked for steady
+ * growth, which is what an unclosed reader or connection looks like over
+ * a few hours.
+ *
+ * With -Dsoak.legacy=true the mix also calls the static httprequests and
+ * RulesRequests helpers the provisioning scripts use. They share one
+ * session per class rather than one per user, swallow their errors (so
+ * those only show up as stack traces, not in the error counts) and print
+ * every response, so redirect the output. Their results go into static
+ * fields (httprequests' tag list and tag id), so the users take turns:
+ * only one legacy call runs at a time.
+ *
+ * Usage: SoakTest server loginfile minutes users [outdir [sampleSeconds]]
+ */
+public class SoakTest
+{
+	private static final String[][] MIX = {
+		{ "30", "GET", "/tags", null },
+		{ "25", "GET", "/assets", null },
+		{ "15", "GET", "/eventRules", null },
+		{ "20", "POST", "/tags/search", "<search text=\"ats-5\"/>" },
+		{ "10", "POST", "/eventSearch?skip=0&limit=30&sortfields=timestamp&order=desc", null } };
+
+	private static final String[][] LEGACY_MIX = {
+		{ "10", "httprequests.getTags", "/tags", null },
+		{ "5", "httprequests.searchTag", "/tags/search", "ats-5" },
+		{ "5", "RulesRequests.readRules", "/eventRules", null } };
+
+	private static String[][] mix = MIX;
+
+	private static final String[] SERIES = { "openFds", "sockets", "heapAfterGcKB", "allocKBps", "gcMillis", "threads" };
+
+	private static volatile boolean running = true;
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 4)
+		{
+			System.out.println("Usage: SoakTest server loginfile minutes users [outdir [sampleSeconds]]");
+			return;
+		}
+		final String server = args[0];
+		final String loginFile = args[1];
+		double minutes = Double.parseDouble(args[2]);
+		int users = Integer.parseInt(args[3]);
+		File outDir = new File(args.length > 4 ? args[4] : ".");
+		long sampleMillis = (args.length > 5 ? Long.parseLong(args[5]) : 30) * 1000;
+		outDir.mkdirs();
+		if (Boolean.getBoolean("soak.legacy"))
+		{
+			mix = new String[MIX.length + LEGACY_MIX.length][];
+			System.arraycopy(MIX, 0, mix, 0, MIX.length);
+			System.arraycopy(LEGACY_MIX, 0, mix, MIX.length, LEGACY_MIX.length);
+			httprequests.login(server + "/login", loginFile);
+			RulesRequests.login(server + "/login", loginFile);
+		}
+
+		final DistributedLoad.Results results = new DistributedLoad.Results();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < users; i++)
+		{
+			final long seed = i;
+			Thread user = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					runUser(server, loginFile, new Random(seed), results);
+				}
+			}, "soak-user-" + i);
+			user.start();
+			threads.add(user);
+		}
+
+		List<long[]> samples = new ArrayList<long[]>();
+		PrintWriter metrics = new PrintWriter(new FileWriter(new File(outDir, "soak-metrics.tsv")));
+		long start = System.currentTimeMillis();
+		long end = start + (long) (minutes * 60 * 1000);
+		try
+		{
+			metrics.println("timestamp\t" + join(SERIES));
+			Sampler sampler = new Sampler();
+			while (System.currentTimeMillis() < end)
+			{
+				Thread.sleep(Math.min(sampleMillis, Math.max(1, end - System.currentTimeMillis())));
+				long[] sample = sampler.sample();
+				samples.add(sample);
+				StringBuffer line = new StringBuffer().append(System.currentTimeMillis());
+				for (long value : sample)
+				{
+					line.append('\t').append(value);
+				}
+				metrics.println(line);
+				metrics.flush();
+			}
+		}
+		finally
+		{
+			metrics.close();
+			running = false;
+			for (Thread user : threads)
+			{
+				user.join();
+			}
+		}
+		results.elapsedMillis = System.currentTimeMillis() - start;
+
+		writeLatency(new File(outDir, "soak-latency.tsv"), results);
+		results.print();
+		boolean leaking = false;
+		for (int i = 0; i < SERIES.length; i++)
+		{
+			// allocation rate and GC time per period are rates, not levels
+			if (SERIES[i].equals("allocKBps") || SERIES[i].equals("gcMillis"))
+			{
+				continue;
+			}
+			String verdict = growth(samples, i);
+			if (verdict != null)
+			{
+				leaking = true;
+				System.out.println("WARNING: " + SERIES[i] + " " + verdict);
+			}
+		}
+		if (!leaking)
+		{
+			System.out.println("No steady growth in " + samples.size() + " samples");
+		}
+	}
+
+	private static void runUser(String server, String loginFile, Random random, DistributedLoad.Results results)
+	{
+		VisionClient client = new VisionClient(server);
+		String eventSearch = "[[\">=\",{\"ks\":[\"timestamp\"]}," + (System.currentTimeMillis() - 86400000L) + "]]";
+		int total = 0;
+		for (String[] op : mix)
+		{
+			total += Integer.parseInt(op[0]);
+		}
+		while (running)
+		{
+			try
+			{
+				if (client.getCookie() == null)
+				{
+					client.login(loginFile);
+				}
+				int pick = random.nextInt(total);
+				String[] op = mix[0];
+				for (String[] candidate : mix)
+				{
+					pick -= Integer.parseInt(candidate[0]);
+					if (pick < 0)
+					{
+						op = candidate;
+						break;
+					}
+				}
+				String label = op[1] + " " + op[2].replaceFirst("\\?.*", "");
+				long start = System.currentTimeMillis();
+				try
+				{
+					if ("GET".equals(op[1]))
+					{
+						client.get(op[2]);
+					}
+					else if ("POST".equals(op[1]))
+					{
+						client.post(op[2], op[3] != null ? op[3] : eventSearch);
+					}
+					else
+					{
+						label = op[1];
+						legacy(server, op);
+					}
+					results.record(label, System.currentTimeMillis() - start, false);
+				}
+				catch (IOException e)
+				{
+					results.record(label, System.currentTimeMillis() - start, true);
+					if (e instanceof VisionClient.StatusException && isSessionLost(((VisionClient.StatusException) e).getStatus()))
+					{
+						// the session expired or was dropped: log in again on the next pass
+						client = new VisionClient(server);
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				sleepQuietly(1000);
+			}
+		}
+	}
+
+	private static boolean isSessionLost(int status)
+	{
+		return status == 401 || status == 403;
+	}
+
+	/**
+	 * Runs one of the LEGACY_MIX calls; they report failures themselves.
+	 * Synchronized because the helpers keep their results in unguarded
+	 * statics.
+	 */
+	private static synchronized void legacy(String server, String[] op)
+	{
+		if ("httprequests.getTags".equals(op[1]))
+		{
+			httprequests.getTags(server + op[2]);
+		}
+		else if ("httprequests.searchTag".equals(op[1]))
+		{
+			httprequests.searchTag(server + op[2], op[3]);
+		}
+		else
+		{
+			RulesRequests.readRules(server + op[2]);
+		}
+	}
+
+	/**
+	 * Reads the JVM counters. Allocation and GC time are turned into
+	 * per-period deltas; the rest are levels.
+	 */
+	static class Sampler
+	{
+		private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		private final Map<Long, Long> allocatedByThread = new HashMap<Long, Long>();
+		private long lastGcMillis = gcMillis();
+		private long lastTime = System.nanoTime();
+
+		Sampler()
+		{
+			// so the first sample counts only what was allocated after this
+			allocatedSinceLast();
+		}
+
+		long[] sample()
+		{
+			long now = System.nanoTime();
+			long allocated = allocatedSinceLast();
+			long gcNow = gcMillis();
+			double seconds = Math.max(1e-3, (now - lastTime) / 1e9);
+			long[] sample = new long[] {
+				openFds(),
+				sockets(),
+				heapAfterGc() / 1024,
+				allocated < 0 ? -1 : (long) (allocated / 1024 / seconds),
+				gcNow - lastGcMillis,
+				threads.getThreadCount() };
+			lastTime = now;
+			lastGcMillis = gcNow;
+			return sample;
+		}
+
+		private long openFds()
+		{
+			if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+			{
+				return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+			}
+			return -1;
+		}
+
+		/** Counts socket descriptors in /proc/self/fd; -1 where there is no /proc. */
+		private static long sockets()
+		{
+			File[] fds = new File("/proc/self/fd").listFiles();
+			if (fds == null)
+			{
+				return -1;
+			}
+			long count = 0;
+			for (File fd : fds)
+			{
+				try
+				{
+					if (Files.readSymbolicLink(fd.toPath()).toString().startsWith("socket:"))
+					{
+						count++;
+					}
+				}
+				catch (IOException e)
+				{
+					// descriptor closed while we looked
+				}
+			}
+			return count;
+		}
+
+		private static long heapAfterGc()
+		{
+			long used = 0;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			{
+				if (pool.getType() == MemoryType.HEAP)
+				{
+					MemoryUsage afterGc = pool.getCollectionUsage();
+					if (afterGc != null)
+					{
+						used += afterGc.getUsed();
+					}
+				}
+			}
+			return used;
+		}
+
+		/**
+		 * Bytes allocated since the previous call, summed per thread so a
+		 * thread that exits cannot pull the total down. What a thread
+		 * allocated after the last sample and before it exited is missed;
+		 * getTotalThreadAllocatedBytes, which would include it, needs JDK 21.
+		 */
+		private long allocatedSinceLast()
+		{
+			if (!(threads instanceof com.sun.management.ThreadMXBean))
+			{
+				return -1;
+			}
+			long[] ids = threads.getAllThreadIds();
+			long[] allocated = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(ids);
+			Map<Long, Long> seen = new HashMap<Long, Long>();
+			long delta = 0;
+			for (int i = 0; i < ids.length; i++)
+			{
+				if (allocated[i] < 0)
+				{
+					continue;
+				}
+				Long before = allocatedByThread.get(ids[i]);
+				delta += allocated[i] - (before != null ? before : 0);
+				seen.put(ids[i], allocated[i]);
+			}
+			allocatedByThread.clear();
+			allocatedByThread.putAll(seen);
+			return delta;
+		}
+
+		private static long gcMillis()
+		{
+			long total = 0;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			{
+				if (gc.getCollectionTime() > 0) total += gc.getCollectionTime();
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * Flags a series whose last third never drops back to where its first
+	 * third peaked and that rose in most steps. Returns null for a series
+	 * that looks flat, or with too few samples to tell.
+	 */
+	static String growth(List<long[]> samples, int column)
+	{
+		int n = samples.size();
+		if (n < 6)
+		{
+			return null;
+		}
+		long firstMax = Long.MIN_VALUE;
+		long lastMin = Long.MAX_VALUE;
+		int rises = 0;
+		int falls = 0;
+		for (int i = 0; i < n; i++)
+		{
+			long v = samples.get(i)[column];
+			if (v < 0)
+			{
+				return null;
+			}
+			if (i < n / 3) firstMax = Math.max(firstMax, v);
+			if (i >= n - n / 3) lastMin = Math.min(lastMin, v);
+			if (i > 0)
+			{
+				long prev = samples.get(i - 1)[column];
+				if (v > prev) rises++;
+				if (v < prev) falls++;
+			}
+		}
+		if (lastMin > firstMax && rises > 2 * falls)
+		{
+			return "grew from " + samples.get(0)[column] + " to " + samples.get(n - 1)[column] + " (" + rises + " rises, " + falls + " falls)";
+		}
+		return null;
+	}
+
+	private static void writeLatency(File file, DistributedLoad.Results results) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try
+		{
+			out.println("label\tcount\terrors\tmean\tp50\tp90\tp99\tmax");
+			Map<String, LatencyHistogram> latency;
+			Map<String, Long> errors;
+			synchronized (results)
+			{
+				latency = new HashMap<String, LatencyHistogram>(results.latency);
+				errors = new HashMap<String, Long>(results.errors);
+			}
+			for (String label : new TreeSet<String>(latency.keySet()))
+			{
+				LatencyHistogram h = latency.get(label);
+				Long count = errors.get(label);
+				out.println(label + "\t" + h.count() + "\t" + (count == null ? 0 : count) + "\t" + String.format("%.1f", h.mean())
+						+ "\t" + h.percentile(50) + "\t" + h.percentile(90) + "\t" + h.percentile(99) + "\t" + h.max());
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static String join(String[] values)
+	{
+		StringBuffer joined = new StringBuffer();
+		for (String value : values)
+		{
+			if (joined.length() > 0) joined.append('\t');
+			joined.append(value);
+		}
+		return joined.toString();
+	}
+
+	private static void sleepQuietly(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,313 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Vision server, for exercising the clients
+ * without a site: it logs anyone in, serves generated /tags, /assets,
+ * /eventRules and /events lists of a chosen size, and answers creates with
+ * a fresh id the way the real server does. Bodies are negotiated like the
+ * real thing would: request bodies may carry a gzip or deflate
+ * Content-Encoding, and responses are compressed per request according to
+ * Accept-Encoding, so CompressionBenchmark can measure both sides.
+ *
+ * Usage: StandInServer [port] [items]
+ */
+public class StandInServer
+{
+	private static final Pattern ROOT_TAG = Pattern.compile("<([A-Za-z]+)");
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final HttpServer http;
+
+	private final ExecutorService pool;
+
+	private final byte[] tags;
+
+	private final byte[] assets;
+
+	private final byte[] eventRules;
+
+	private final byte[] events;
+
+	private final AtomicLong nextId = new AtomicLong(0x5000000000L);
+
+	private volatile boolean compress = true;
+
+	final AtomicLong requests = new AtomicLong();
+
+	final AtomicLong plainIn = new AtomicLong();
+
+	final AtomicLong wireIn = new AtomicLong();
+
+	final AtomicLong plainOut = new AtomicLong();
+
+	final AtomicLong wireOut = new AtomicLong();
+
+	final AtomicLong cpuNanos = new AtomicLong();
+
+	public static void main(String[] args) throws IOException
+	{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+		int items = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		StandInServer server = new StandInServer(port, items, 16);
+		server.start();
+		System.out.println("Stand-in Vision server on http://localhost:" + server.getPort() + " with " + items + " tags and assets");
+	}
+
+	public StandInServer(int port, int items, int handlerThreads) throws IOException
+	{
+		Random random = new Random(42);
+		tags = generateTags(items, random);
+		assets = generateAssets(items, random);
+		eventRules = generateEventRules(Math.max(1, items / 20));
+		events = generateEvents(items, random);
+		pool = Executors.newFixedThreadPool(handlerThreads);
+		http = HttpServer.create(new InetSocketAddress(port), 256);
+		http.setExecutor(pool);
+		http.createContext("/", new HttpHandler()
+		{
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				long cpu = threads.getCurrentThreadCpuTime();
+				try
+				{
+					serve(exchange);
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+				finally
+				{
+					exchange.close();
+					cpuNanos.addAndGet(threads.getCurrentThreadCpuTime() - cpu);
+				}
+			}
+		});
+	}
+
+	public void start()
+	{
+		http.start();
+	}
+
+	public void stop()
+	{
+		http.stop(0);
+		pool.shutdown();
+	}
+
+	public int getPort()
+	{
+		return http.getAddress().getPort();
+	}
+
+	/** With compression off, Accept-Encoding is ignored and responses go out plain. */
+	public void setCompress(boolean compress)
+	{
+		this.compress = compress;
+	}
+
+	public void resetCounters()
+	{
+		requests.set(0);
+		plainIn.set(0);
+		wireIn.set(0);
+		plainOut.set(0);
+		wireOut.set(0);
+		cpuNanos.set(0);
+	}
+
+	private void serve(HttpExchange exchange) throws IOException
+	{
+		requests.incrementAndGet();
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath();
+		String override = exchange.getRequestHeaders().getFirst("X-Vision-REST-Method");
+
+		byte[] wire = readAll(exchange.getRequestBody());
+		wireIn.addAndGet(wire.length);
+		String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+		if (encoding != null && !ContentCoding.supports(encoding) && !"identity".equalsIgnoreCase(encoding))
+		{
+			respond(exchange, 415, "<error message=\"Unsupported Content-Encoding\"/>");
+			return;
+		}
+		byte[] body = encoding != null ? readAll(ContentCoding.decode(new ByteArrayInputStream(wire), encoding)) : wire;
+		plainIn.addAndGet(body.length);
+		String content = new String(body, StandardCharsets.UTF_8);
+
+		if ("/login".equals(path))
+		{
+			exchange.getResponseHeaders().add("Set-Cookie", "ring-session=" + UUID.randomUUID() + ";Path=/");
+			respond(exchange, 200, "<user name=\"admin\"/>");
+		}
+		else if ("GET".equals(method) && "/tags".equals(path))
+		{
+			respond(exchange, 200, tags);
+		}
+		else if ("GET".equals(method) && "/assets".equals(path))
+		{
+			respond(exchange, 200, assets);
+		}
+		else if ("GET".equals(method) && "/eventRules".equals(path))
+		{
+			respond(exchange, 200, eventRules);
+		}
+		else if ("/events".equals(path) || "/eventSearch".equals(path))
+		{
+			respond(exchange, 200, events);
+		}
+		else if ("GET".equals(method))
+		{
+			respond(exchange, 200, "<list/>");
+		}
+		else if ("DELETE".equals(method) || "PUT".equals(override) || content.contains("_method="))
+		{
+			respond(exchange, 200, "<ok/>");
+		}
+		else if ("/assetTypes".equals(path))
+		{
+			String id = id();
+			respond(exchange, 200, "<assetType id=\"" + id + "\" name=\"IVPump\"><propertyGroup id=\"" + id()
+					+ "\" name=\"Properties\"><property id=\"" + id() + "\" label=\"Property\" type=\"text\"/></propertyGroup></assetType>");
+		}
+		else if (path.split("/").length == 2)
+		{
+			// a create on a collection: echo the root element with a new id
+			Matcher m = ROOT_TAG.matcher(content);
+			String root = m.find() ? m.group(1) : "item";
+			respond(exchange, 200, "<" + root + " id=\"" + id() + "\"/>");
+		}
+		else
+		{
+			respond(exchange, 200, "<ok/>");
+		}
+	}
+
+	private void respond(HttpExchange exchange, int status, String body) throws IOException
+	{
+		respond(exchange, status, body.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** Compresses per request, not once per list, so the CPU cost is real. */
+	private void respond(HttpExchange exchange, int status, byte[] body) throws IOException
+	{
+		String encoding = compress ? ContentCoding.choose(exchange.getRequestHeaders().getFirst("Accept-Encoding")) : null;
+		byte[] wire = body;
+		exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=utf-8");
+		exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+		if (encoding != null)
+		{
+			wire = ContentCoding.encode(body, encoding);
+			exchange.getResponseHeaders().set("Content-Encoding", encoding);
+		}
+		plainOut.addAndGet(body.length);
+		wireOut.addAndGet(wire.length);
+		exchange.sendResponseHeaders(status, wire.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(wire);
+		out.close();
+	}
+
+	private String id()
+	{
+		return String.format("%024x", nextId.incrementAndGet());
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try
+		{
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0)
+			{
+				out.write(buf, 0, n);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] generateTags(int count, Random random)
+	{
+		StringBuffer xml = new StringBuffer("<tags>");
+		for (int i = 0; i < count; i++)
+		{
+			xml.append("<tag tagid=\"").append(i + 1).append("\" name=\"Tag ").append(i + 1)
+					.append("\" mac=\"00:18:8e:").append(String.format("%02x:%02x:%02x", random.nextInt(256), random.nextInt(256), random.nextInt(256)))
+					.append("\" serialnumber=\"301B-").append(1000 + random.nextInt(9000)).append('-').append(10000 + random.nextInt(90000))
+					.append("\" battery=\"").append(random.nextInt(101)).append("\" icon=\"t301b.png\"");
+			if (i % 2 == 0)
+			{
+				xml.append(" assetId=\"").append(String.format("%024x", 0x4000000000L + i)).append('"');
+			}
+			xml.append("/>");
+		}
+		return xml.append("</tags>").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] generateAssets(int count, Random random)
+	{
+		String type = String.format("%024x", 0x3000000000L);
+		StringBuffer xml = new StringBuffer("<assets>");
+		for (int i = 0; i < count; i++)
+		{
+			xml.append("<asset id=\"").append(String.format("%024x", 0x4000000000L + i)).append("\" assetTypeId=\"").append(type).append("\">")
+					.append("<property id=\"").append(type).append(",1,2\" value=\"IVPump ").append(random.nextInt(100000)).append("\" type=\"text\"/>")
+					.append("</asset>");
+		}
+		return xml.append("</assets>").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] generateEventRules(int count)
+	{
+		StringBuffer xml = new StringBuffer("<eventRules>");
+		for (int i = 0; i < count; i++)
+		{
+			xml.append("<eventRule id=\"").append(String.format("%024x", 0x6000000000L + i)).append("\" name=\"rule ").append(i)
+					.append("\" description=\"Description\" disabled=\"false\" active=\"true\">")
+					.append("<trigger type=\"button\" buttons=\"button1\"><subjectSpecification type=\"all\"/><areaSpecification type=\"all\"/></trigger>")
+					.append("<action type=\"alert\" title=\"button 1 alert rule\" closeButtonLabel=\"OK\"><target type=\"allUsers\"/></action>")
+					.append("</eventRule>");
+		}
+		return xml.append("</eventRules>").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] generateEvents(int count, Random random)
+	{
+		long now = System.currentTimeMillis();
+		StringBuffer xml = new StringBuffer("<events>");
+		for (int i = 0; i < count; i++)
+		{
+			xml.append("<event id=\"").append(String.format("%024x", 0x7000000000L + i)).append("\" type=\"button\" timestamp=\"")
+					.append(now - random.nextInt(86400000)).append("\" assetId=\"").append(String.format("%024x", 0x4000000000L + random.nextInt(count)))
+					.append("\" tagId=\"").append(1 + random.nextInt(count)).append("\"/>");
+		}
+		return xml.append("</events>").toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Sends one tag message to many assets at once.
+ *
+ * /assets/tagMessages takes a list of asset ids but a single tagType (see
+ * messageformat.txt), so the assets are first looked up in a cached
+ * asset-to-tag-type index built from /tags, grouped by type and cut into
+ * chunks. The index is built once at startup and rebuilt in the background
+ * every few minutes and whenever a page names an asset it doesn't know.
+ * An asset missing from the index may just have had its tag bound since
+ * the last build, so it is looked up with /assets/{id}/tag before being
+ * answered NO_TAG; a page naming more than MAX_LOOKUPS such assets waits
+ * for one fresh /tags instead. Chunks from all fan-outs in flight share one
+ * pool whose queue is ordered by page priority, so a high priority page
+ * never waits behind a routine one. The result says, per asset, whether
+ * its chunk was accepted.
+ *
+ * Usage: TagMessageFanout server loginfile priority text assetId...
+ */
+public class TagMessageFanout
+{
+	public static final String DELIVERED = "delivered";
+
+	public static final String NO_TAG = "noTag";
+
+	public static final String FAILED = "failed";
+
+	private static final int MAX_CHUNK = 250;
+
+	private static final int MIN_CHUNK = 25;
+
+	private static final long INDEX_MAX_AGE_MILLIS = 5 * 60 * 1000;
+
+	private static final int MAX_LOOKUPS = 25;
+
+	private static final AtomicLong sequence = new AtomicLong();
+
+	private final VisionClient client;
+
+	private final int concurrency;
+
+	private final ThreadPoolExecutor senders;
+
+	private volatile Map<String, String> tagTypes = new HashMap<String, String>();
+
+	private volatile long indexedAt;
+
+	private final ScheduledExecutorService indexer = Executors.newSingleThreadScheduledExecutor();
+
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+
+	private volatile long refreshRequestedAt;
+
+	/** One tagMessage request waiting in the send queue. */
+	private class Chunk implements Runnable, Comparable<Chunk>
+	{
+		final int rank;
+		final long order = sequence.incrementAndGet();
+		final String tagType;
+		final List<String> assetIds;
+		final String text;
+		final String priority;
+		final Map<String, String> results;
+		final CountDownLatch done;
+
+		Chunk(String tagType, List<String> assetIds, String text, String priority, Map<String, String> results, CountDownLatch done)
+		{
+			this.rank = rank(priority);
+			this.tagType = tagType;
+			this.assetIds = assetIds;
+			this.text = text;
+			this.priority = priority;
+			this.results = results;
+			this.done = done;
+		}
+
+		public int compareTo(Chunk other)
+		{
+			if (rank != other.rank)
+			{
+				return rank < other.rank ? -1 : 1;
+			}
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+
+		public void run()
+		{
+			String status = FAILED;
+			try
+			{
+				send(this);
+				status = DELIVERED;
+			}
+			catch (IOException e)
+			{
+				status = FAILED + ": " + e.getMessage();
+			}
+			finally
+			{
+				for (String assetId : assetIds)
+				{
+					results.put(assetId, status);
+				}
+				done.countDown();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 5)
+		{
+			System.out.println("Usage: TagMessageFanout server loginfile priority text assetId...");
+			return;
+		}
+		VisionClient client = new VisionClient(args[0]);
+		client.login(args[1]);
+		List<String> assets = new ArrayList<String>();
+		for (int i = 4; i < args.length; i++)
+		{
+			assets.add(args[i]);
+		}
+
+		TagMessageFanout fanout = new TagMessageFanout(client, 8);
+		long start = System.currentTimeMillis();
+		Map<String, String> results = fanout.send(assets, args[3], args[2]);
+		long elapsed = System.currentTimeMillis() - start;
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (Map.Entry<String, String> e : results.entrySet())
+		{
+			System.out.println(e.getKey() + "\t" + e.getValue());
+			String key = e.getValue().startsWith(FAILED) ? FAILED : e.getValue();
+			counts.put(key, counts.containsKey(key) ? counts.get(key) + 1 : 1);
+		}
+		System.out.println(counts + " in " + elapsed + " ms");
+		fanout.shutdown();
+	}
+
+	public TagMessageFanout(VisionClient client, int concurrency)
+	{
+		this.client = client;
+		this.concurrency = concurrency;
+		this.senders = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+		indexer.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				refreshIndex(System.currentTimeMillis());
+			}
+		}, 0, INDEX_MAX_AGE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Pages every asset in assetIds and blocks until each chunk has been
+	 * answered. Returns asset id to DELIVERED, NO_TAG or "failed: reason",
+	 * in the order the ids were given.
+	 */
+	public Map<String, String> send(Collection<String> assetIds, String text, String priority) throws IOException, InterruptedException
+	{
+		long started = System.currentTimeMillis();
+		Map<String, String> types = index();
+		Map<String, List<String>> byType = new LinkedHashMap<String, List<String>>();
+		Map<String, String> results = new ConcurrentHashMap<String, String>();
+		List<String> unknown = new ArrayList<String>();
+		Map<String, String> found = new HashMap<String, String>();
+		for (String assetId : assetIds)
+		{
+			if (!types.containsKey(assetId))
+			{
+				unknown.add(assetId);
+			}
+		}
+		if (unknown.size() > MAX_LOOKUPS)
+		{
+			// one /tags is cheaper than this many lookups
+			try
+			{
+				buildIndexSince(started);
+				types = tagTypes;
+			}
+			catch (IOException e)
+			{
+				for (String assetId : unknown)
+				{
+					results.put(assetId, FAILED + ": tag index: " + e.getMessage());
+				}
+			}
+		}
+		else if (!unknown.isEmpty())
+		{
+			// a tag may have been bound since the index was built
+			requestRefresh();
+			for (String assetId : unknown)
+			{
+				try
+				{
+					String type = lookUp(assetId);
+					if (type != null)
+					{
+						found.put(assetId, type);
+					}
+				}
+				catch (IOException e)
+				{
+					results.put(assetId, FAILED + ": tag lookup: " + e.getMessage());
+				}
+			}
+		}
+		for (String assetId : assetIds)
+		{
+			if (results.containsKey(assetId))
+			{
+				continue;
+			}
+			String type = types.containsKey(assetId) ? types.get(assetId) : found.get(assetId);
+			if (type == null)
+			{
+				results.put(assetId, NO_TAG);
+				continue;
+			}
+			List<String> group = byType.get(type);
+			if (group == null)
+			{
+				group = new ArrayList<String>();
+				byType.put(type, group);
+			}
+			group.add(assetId);
+		}
+
+		int tagged = 0;
+		for (List<String> group : byType.values())
+		{
+			tagged += group.size();
+		}
+		List<String> chunkTypes = new ArrayList<String>();
+		List<List<String>> chunkIds = new ArrayList<List<String>>();
+		for (Map.Entry<String, List<String>> group : byType.entrySet())
+		{
+			List<String> ids = group.getValue();
+			int size = chunkSize(ids.size(), tagged);
+			for (int from = 0; from < ids.size(); from += size)
+			{
+				chunkTypes.add(group.getKey());
+				chunkIds.add(ids.subList(from, Math.min(ids.size(), from + size)));
+			}
+		}
+		CountDownLatch done = new CountDownLatch(chunkIds.size());
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (int i = 0; i < chunkIds.size(); i++)
+		{
+			chunks.add(new Chunk(chunkTypes.get(i), chunkIds.get(i), text, priority, results, done));
+		}
+		for (Chunk chunk : chunks)
+		{
+			senders.execute(chunk);
+		}
+		done.await();
+
+		Map<String, String> ordered = new LinkedHashMap<String, String>();
+		for (String assetId : assetIds)
+		{
+			ordered.put(assetId, results.get(assetId));
+		}
+		return ordered;
+	}
+
+	public void shutdown()
+	{
+		senders.shutdown();
+		indexer.shutdownNow();
+	}
+
+	/**
+	 * Chunks are sized so that the whole page spreads over about one request
+	 * per sender thread, but never smaller than MIN_CHUNK (per-request
+	 * overhead dominates) or larger than MAX_CHUNK (one slow request holds up
+	 * too many tags).
+	 */
+	private int chunkSize(int groupSize, int total)
+	{
+		int share = Math.max(1, (int) Math.round((double) concurrency * groupSize / Math.max(1, total)));
+		int size = (groupSize + share - 1) / share;
+		return Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, size));
+	}
+
+	private void send(Chunk chunk) throws IOException
+	{
+		StringBuffer ids = new StringBuffer();
+		for (String assetId : chunk.assetIds)
+		{
+			if (ids.length() > 0) ids.append(',');
+			ids.append(assetId);
+		}
+		String content = "<tagMessage>"
+				+ "<assetIds>" + ids + "</assetIds>"
+				+ "<tagType>" + chunk.tagType + "</tagType>"
+				+ "<messageText instant=\"true\">" + escape(chunk.text) + "</messageText>"
+				+ "<page type=\"audible\" duration=\"10\" priority=\"" + chunk.priority + "\"/>"
+				+ "</tagMessage>";
+		// one retry: a dropped connection should not cost a ward its page
+		client.post("/assets/tagMessages", content, 1);
+	}
+
+	/**
+	 * The tag type of the tag bound to assetId, or null if it has none; the
+	 * server answers 404 for an asset without a tag.
+	 */
+	private String lookUp(String assetId) throws IOException
+	{
+		try
+		{
+			return tagType(client.getDocument("/assets/" + assetId + "/tag").getDocumentElement());
+		}
+		catch (VisionClient.StatusException e)
+		{
+			if (e.getStatus() == 404)
+			{
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the current asset id to tag type index. Only a fan-out that
+	 * arrives before the first index was ever built waits for /tags, and
+	 * then for the startup build if that is already under way.
+	 */
+	private Map<String, String> index() throws IOException
+	{
+		if (indexedAt == 0)
+		{
+			buildIndexSince(0);
+		}
+		if (System.currentTimeMillis() - indexedAt > INDEX_MAX_AGE_MILLIS)
+		{
+			requestRefresh();
+		}
+		return tagTypes;
+	}
+
+	/** Queues a background rebuild, at most once a second and one at a time. */
+	private void requestRefresh()
+	{
+		long now = System.currentTimeMillis();
+		if (now - refreshRequestedAt < 1000 || refreshing.get())
+		{
+			return;
+		}
+		refreshRequestedAt = now;
+		indexer.execute(new Runnable()
+		{
+			public void run()
+			{
+				refreshIndex(System.currentTimeMillis());
+			}
+		});
+	}
+
+	private void refreshIndex(long requestedAt)
+	{
+		if (!refreshing.compareAndSet(false, true))
+		{
+			return;
+		}
+		try
+		{
+			buildIndexSince(requestedAt);
+		}
+		catch (IOException e)
+		{
+			// keep serving the old index; the next refresh tries again
+			System.out.println("Could not refresh the tag index: " + e.getMessage());
+		}
+		finally
+		{
+			refreshing.set(false);
+		}
+	}
+
+	/**
+	 * Reads /tags unless an index finished at or after since already exists,
+	 * so a caller queued behind another build doesn't repeat it.
+	 */
+	private synchronized void buildIndexSince(long since) throws IOException
+	{
+		if (indexedAt != 0 && indexedAt >= since)
+		{
+			return;
+		}
+		buildIndex();
+	}
+
+	private void buildIndex() throws IOException
+	{
+		Element root = client.getDocument("/tags").getDocumentElement();
+		NodeList tags = root.getElementsByTagName("tag");
+		Map<String, String> types = new HashMap<String, String>();
+		for (int i = 0; i < tags.getLength(); i++)
+		{
+			Element tag = (Element) tags.item(i);
+			if (tag.hasAttribute("assetId"))
+			{
+				String type = tagType(tag);
+				if (type != null)
+				{
+					types.put(tag.getAttribute("assetId"), type);
+				}
+			}
+		}
+		tagTypes = types;
+		indexedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * The tag XML has no type attribute; the server only exposes it through
+	 * the icon name (t301b.png), so fall back to the serial number prefix
+	 * (301B-1038-33672) when there is no icon.
+	 */
+	static String tagType(Element tag)
+	{
+		String icon = tag.getAttribute("icon");
+		if (icon.endsWith(".png"))
+		{
+			return icon.substring(0, icon.length() - 4);
+		}
+		String serial = tag.getAttribute("serialnumber");
+		int dash = serial.indexOf('-');
+		if (dash > 0 && serial.startsWith("30"))
+		{
+			return "t" + serial.substring(0, dash).toLowerCase();
+		}
+		return null;
+	}
+
+	private static int rank(String priority)
+	{
+		if ("high".equals(priority)) return 0;
+		if ("low".equals(priority)) return 2;
+		return 1;
+	}
+
+	private static String escape(String s)
+	{
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+}
@@ -0,0 +1,254 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append-only binary log of Vision requests and responses.
+ *
+ * Capture is switched on for every VisionClient in the JVM with
+ * -Dvision.capture=file. Each entry holds the start time, duration, session
+ * number, thread, method, path, status and both bodies (except /login
+ * request bodies, which hold credentials and are left out); integers are
+ * written as varints so the per-request overhead is a handful of bytes.
+ *
+ * A file can be appended to by several runs; each run starts with its own
+ * header carrying a random run id, since session numbers restart at 1 in
+ * every JVM. The Reader hands the run id out with each entry.
+ *
+ * Entries are written when an exchange completes, so they are ordered by
+ * end time, not start time; a reader that needs start order has to sort.
+ */
+public class TrafficLog
+{
+	private static final int MAGIC = 0x56544c32;
+
+	/** The first format: no run id in the header and no thread per entry. */
+	private static final int MAGIC_V1 = 0x56544c31;
+
+	private static final AtomicInteger sessions = new AtomicInteger();
+
+	private final DataOutputStream out;
+
+	/**
+	 * Holds the JVM-wide capture log. The class is only initialised on the
+	 * first capture() call, so the property is read once without every
+	 * request taking a lock to ask.
+	 */
+	private static class Capture
+	{
+		static final TrafficLog LOG = open(System.getProperty("vision.capture"));
+
+		private static TrafficLog open(String file)
+		{
+			if (file == null || file.length() == 0)
+			{
+				return null;
+			}
+			try
+			{
+				final TrafficLog log = new TrafficLog(new File(file));
+				Runtime.getRuntime().addShutdownHook(new Thread()
+				{
+					public void run()
+					{
+						log.close();
+					}
+				});
+				return log;
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
+
+	/** One recorded exchange. */
+	public static class Entry
+	{
+		public long run;
+		public long startMicros;
+		public int durationMicros;
+		public int session;
+		public long thread;
+		public String method;
+		public String path;
+		public int status;
+		public byte[] request = new byte[0];
+		public byte[] response = new byte[0];
+	}
+
+	/**
+	 * Returns the JVM-wide capture log named by -Dvision.capture, or null if
+	 * capture is off.
+	 */
+	public static TrafficLog capture()
+	{
+		return Capture.LOG;
+	}
+
+	public static int nextSession()
+	{
+		return sessions.incrementAndGet();
+	}
+
+	public TrafficLog(File file) throws IOException
+	{
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+		out.writeInt(MAGIC);
+		out.writeLong(UUID.randomUUID().getLeastSignificantBits());
+	}
+
+	public synchronized void append(Entry e)
+	{
+		try
+		{
+			out.writeByte(1);
+			writeVarLong(out, e.startMicros);
+			writeVarLong(out, e.durationMicros);
+			writeVarLong(out, e.session);
+			writeVarLong(out, e.thread);
+			out.writeUTF(e.method);
+			out.writeUTF(e.path);
+			writeVarLong(out, e.status);
+			writeVarLong(out, e.request.length);
+			out.write(e.request);
+			writeVarLong(out, e.response.length);
+			out.write(e.response);
+		}
+		catch (IOException ex)
+		{
+			ex.printStackTrace();
+		}
+	}
+
+	public synchronized void close()
+	{
+		try
+		{
+			out.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/** Reads a log back one entry at a time. */
+	public static class Reader
+	{
+		private final DataInputStream in;
+
+		private int magic;
+
+		private long run;
+
+		public Reader(File file) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		}
+
+		/** Returns the next entry, or null at the end of the file. */
+		public Entry next() throws IOException
+		{
+			int kind;
+			while (true)
+			{
+				kind = in.read();
+				if (kind < 0)
+				{
+					return null;
+				}
+				if (kind == 1)
+				{
+					break;
+				}
+				// a run header: the first byte of MAGIC, then the rest of it
+				int rest = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+				magic = (kind << 24) | rest;
+				if (magic == MAGIC)
+				{
+					run = in.readLong();
+				}
+				else if (magic == MAGIC_V1)
+				{
+					// no run id was written: number the runs in file order
+					run++;
+				}
+				else
+				{
+					throw new IOException("Not a traffic log, or corrupt entry");
+				}
+			}
+			try
+			{
+				Entry e = new Entry();
+				e.run = run;
+				e.startMicros = readVarLong(in);
+				e.durationMicros = (int) readVarLong(in);
+				e.session = (int) readVarLong(in);
+				if (magic == MAGIC)
+				{
+					e.thread = readVarLong(in);
+				}
+				e.method = in.readUTF();
+				e.path = in.readUTF();
+				e.status = (int) readVarLong(in);
+				e.request = new byte[(int) readVarLong(in)];
+				in.readFully(e.request);
+				e.response = new byte[(int) readVarLong(in)];
+				in.readFully(e.response);
+				return e;
+			}
+			catch (EOFException ex)
+			{
+				// the last entry of a run that was killed mid-write
+				return null;
+			}
+		}
+
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+
+	static void writeVarLong(DataOutputStream out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarLong(DataInputStream in) throws IOException
+	{
+		long value = 0;
+		int shift = 0;
+		while (true)
+		{
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+			shift += 7;
+			if (shift > 63)
+			{
+				throw new IOException("Malformed varint");
+			}
+		}
+	}
+}
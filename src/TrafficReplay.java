@@ -0,0 +1,276 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Re-issues a TrafficLog against another server.
+ *
+ * Every recorded session gets its own VisionClient, and every thread that
+ * used it its own replay thread, so requests from one thread keep their
+ * order (a bind still follows the create it depends on) while threads and
+ * sessions overlap as they did originally. Sessions are told apart by run
+ * as well, since every run numbers them from 1.
+ *
+ * Requests are released at their recorded offsets divided by the speed-up;
+ * speed 0 sends everything as fast as the sessions allow. The log holds
+ * entries in the order they completed, so they are re-sorted by start time
+ * within REORDER_WINDOW_MICROS; a request that took longer than that may
+ * be replayed after ones that started later. Each run in the log starts
+ * where the previous one ended rather than after the real gap between them.
+ *
+ * Ids are rewritten on the way: whenever a recorded response and its
+ * replayed response carry different id attributes on their root element
+ * (a new asset, asset type or rule), later requests get the new id. A map
+ * file of "old<TAB>new" lines adds fixed rewrites, e.g. recorded tag ids
+ * to tags that exist on the target. Credentials are not in the log, so
+ * every recorded login is replayed with the login file given for the
+ * target.
+ *
+ * Usage: TrafficReplay server loginfile log.bin [speed] [idmap.tsv]
+ */
+public class TrafficReplay
+{
+	private static final Pattern TOKEN = Pattern.compile("[A-Za-z0-9_-]+");
+
+	private static final long REORDER_WINDOW_MICROS = 60L * 1000 * 1000;
+
+	private static final Comparator<TrafficLog.Entry> BY_START = new Comparator<TrafficLog.Entry>()
+	{
+		public int compare(TrafficLog.Entry a, TrafficLog.Entry b)
+		{
+			return Long.compare(a.startMicros, b.startMicros);
+		}
+	};
+
+	private static final Pattern ROOT_ID = Pattern.compile("^\\s*(?:<\\?[^>]*\\?>\\s*)?<[A-Za-z]+[^>]*?\\sid=\"([^\"]+)\"");
+
+	private final String server;
+
+	private final String loginFile;
+
+	private final double speed;
+
+	private final Map<String, String> ids = new ConcurrentHashMap<String, String>();
+
+	private final DistributedLoad.Results results = new DistributedLoad.Results();
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 3)
+		{
+			System.out.println("Usage: TrafficReplay server loginfile log.bin [speed] [idmap.tsv]");
+			return;
+		}
+		double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+		TrafficReplay replay = new TrafficReplay(args[0], args[1], speed);
+		if (args.length > 4)
+		{
+			replay.loadIdMap(new File(args[4]));
+		}
+		replay.replay(new File(args[2]));
+	}
+
+	public TrafficReplay(String server, String loginFile, double speed)
+	{
+		this.server = server;
+		this.loginFile = loginFile;
+		this.speed = speed;
+	}
+
+	public void loadIdMap(File file) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				String[] fields = line.split("\t");
+				if (fields.length == 2)
+				{
+					ids.put(fields[0], fields[1]);
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	public void replay(File log) throws Exception
+	{
+		Map<String, ExecutorService> threads = new HashMap<String, ExecutorService>();
+		Map<String, VisionClient> clients = new HashMap<String, VisionClient>();
+		PriorityQueue<TrafficLog.Entry> window = new PriorityQueue<TrafficLog.Entry>(64, BY_START);
+		TrafficLog.Reader reader = new TrafficLog.Reader(log);
+		long started = System.nanoTime();
+		int count = 0;
+		try
+		{
+			TrafficLog.Entry ahead = reader.next();
+			long run = ahead != null ? ahead.run : 0;
+			long runFirstMicros = -1;
+			long runOffsetMicros = 0;
+			long lastDueMicros = 0;
+			while (ahead != null || !window.isEmpty())
+			{
+				// read on until nothing still to come can have started before the earliest held entry
+				while (ahead != null && ahead.run == run
+						&& (window.isEmpty() || ahead.startMicros + ahead.durationMicros - window.peek().startMicros < REORDER_WINDOW_MICROS))
+				{
+					window.add(ahead);
+					ahead = reader.next();
+				}
+				if (window.isEmpty())
+				{
+					run = ahead.run;
+					runFirstMicros = -1;
+					continue;
+				}
+				TrafficLog.Entry e = window.poll();
+				if (runFirstMicros < 0)
+				{
+					runFirstMicros = e.startMicros;
+					runOffsetMicros = lastDueMicros;
+				}
+				lastDueMicros = runOffsetMicros + e.startMicros - runFirstMicros;
+				if (speed > 0)
+				{
+					long dueNanos = (long) (lastDueMicros * 1000 / speed);
+					long wait = dueNanos - (System.nanoTime() - started);
+					if (wait > 0)
+					{
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+				}
+
+				String sessionKey = e.run + "/" + e.session;
+				String threadKey = sessionKey + "/" + e.thread;
+				ExecutorService thread = threads.get(threadKey);
+				if (thread == null)
+				{
+					thread = Executors.newSingleThreadExecutor();
+					threads.put(threadKey, thread);
+				}
+				if (!clients.containsKey(sessionKey))
+				{
+					clients.put(sessionKey, new VisionClient(server));
+				}
+				final VisionClient client = clients.get(sessionKey);
+				final TrafficLog.Entry entry = e;
+				thread.execute(new Runnable()
+				{
+					public void run()
+					{
+						issue(client, entry);
+					}
+				});
+				count++;
+			}
+		}
+		finally
+		{
+			reader.close();
+			for (ExecutorService thread : threads.values())
+			{
+				thread.shutdown();
+			}
+			for (ExecutorService thread : threads.values())
+			{
+				thread.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			}
+		}
+		results.elapsedMillis = (System.nanoTime() - started) / 1000000;
+		System.out.println("Replayed " + count + " requests from " + clients.size() + " sessions (" + threads.size() + " threads) in "
+				+ results.elapsedMillis + " ms");
+		results.print();
+	}
+
+	private void issue(VisionClient client, TrafficLog.Entry e)
+	{
+		String path = rewrite(e.path);
+		String body = e.request.length > 0 ? rewrite(new String(e.request, StandardCharsets.UTF_8)) : null;
+		String label = e.method + " " + VisionClient.endpoint(path);
+		long start = System.nanoTime();
+		try
+		{
+			String response;
+			if ("/login".equals(e.path))
+			{
+				client.login(loginFile);
+				response = null;
+			}
+			else if ("GET".equals(e.method))
+			{
+				response = client.get(path);
+			}
+			else if ("DELETE".equals(e.method))
+			{
+				response = client.delete(path);
+			}
+			else
+			{
+				response = client.post(path, body != null ? body : "");
+			}
+			results.record(label, (System.nanoTime() - start) / 1000000, false);
+			learnId(e, response);
+		}
+		catch (IOException ex)
+		{
+			results.record(label, (System.nanoTime() - start) / 1000000, true);
+		}
+	}
+
+	/** Maps the recorded root id of a response to the one the target returned. */
+	private void learnId(TrafficLog.Entry e, String response)
+	{
+		if (response == null || e.response.length == 0)
+		{
+			return;
+		}
+		Matcher recorded = ROOT_ID.matcher(new String(e.response, StandardCharsets.UTF_8));
+		Matcher replayed = ROOT_ID.matcher(response);
+		if (recorded.find() && replayed.find() && !recorded.group(1).equals(replayed.group(1)))
+		{
+			ids.put(recorded.group(1), replayed.group(1));
+		}
+	}
+
+	String rewrite(String text)
+	{
+		if (ids.isEmpty())
+		{
+			return text;
+		}
+		Matcher m = TOKEN.matcher(text);
+		StringBuffer out = null;
+		while (m.find())
+		{
+			String replacement = ids.get(m.group());
+			if (replacement != null)
+			{
+				if (out == null) out = new StringBuffer(text.length());
+				m.appendReplacement(out, Matcher.quoteReplacement(replacement));
+			}
+		}
+		if (out == null)
+		{
+			return text;
+		}
+		m.appendTail(out);
+		return out.toString();
+	}
+}
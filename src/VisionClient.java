@@ -0,0 +1,655 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * One Vision session: the same requests httprequests and RulesRequests
+ * make, but with the cookie held per instance so several virtual users can
+ * run side by side in one JVM, and with connections and readers always
+ * closed, error responses included. With -Dvision.capture=file every
+ * exchange is also recorded to a TrafficLog.
+ *
+ * Every request emits a VisionRequestEvent with its phase timings and every
+ * parse a VisionParseEvent. They cost next to nothing unless a Flight
+ * Recorder is running (-XX:StartFlightRecording), and JfrSummary turns the
+ * resulting file into a per-endpoint breakdown. Tools that stream their
+ * own bodies or need the response headers go through transfer(), so their
+ * requests are timed and captured like the rest.
+ *
+ * Responses are requested with Accept-Encoding: gzip, deflate and decoded
+ * as they are read (see ContentCoding). Request bodies are only compressed
+ * when asked to, since not every server accepts a Content-Encoding on a
+ * request; -Dvision.acceptEncoding and -Dvision.requestEncoding set the
+ * defaults for new clients.
+ */
+public class VisionClient
+{
+	private final String server;
+
+	private String cookie;
+
+	private final int session = TrafficLog.nextSession();
+
+	/** Bodies smaller than this are sent as they are; they would hardly shrink. */
+	private static final int MIN_COMPRESSED_BODY = 1024;
+
+	private String acceptEncoding = System.getProperty("vision.acceptEncoding", ContentCoding.ACCEPT);
+
+	private String requestEncoding = System.getProperty("vision.requestEncoding");
+
+	public VisionClient(String server)
+	{
+		this.server = server;
+	}
+
+	public String getServer()
+	{
+		return server;
+	}
+
+	public String getCookie()
+	{
+		return cookie;
+	}
+
+	/** Sets the Accept-Encoding to send; null or "identity" asks for plain bodies. */
+	public void setAcceptEncoding(String acceptEncoding)
+	{
+		this.acceptEncoding = acceptEncoding;
+	}
+
+	/** Compresses request bodies of 1 KB or more with gzip or deflate; null sends them plain. */
+	public void setRequestEncoding(String requestEncoding)
+	{
+		if (requestEncoding != null && !ContentCoding.supports(requestEncoding))
+		{
+			throw new IllegalArgumentException("Unsupported request encoding: " + requestEncoding);
+		}
+		this.requestEncoding = requestEncoding;
+	}
+
+	/** Logs in with the XML body in filepath, like httprequests.login. */
+	public void login(String filepath) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(filepath));
+		StringBuffer content = new StringBuffer();
+		try
+		{
+			String str;
+			while ((str = in.readLine()) != null)
+			{
+				content.append(str);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		loginWith(content.toString());
+	}
+
+	public void loginWith(String content) throws IOException
+	{
+		HttpURLConnection conn = open("/login", "POST");
+		conn.setRequestProperty("X-Vision-REST-Method", "PUT");
+		conn.setRequestProperty("User-Agent", "Mozilla/4.0");
+		exchange(conn, "/login", content, 0);
+	}
+
+	public String get(String path) throws IOException
+	{
+		return exchange(open(path, "GET"), path, null, 0);
+	}
+
+	public String post(String path, String content) throws IOException
+	{
+		return exchange(open(path, "POST"), path, content, 0);
+	}
+
+	/**
+	 * Posts content, trying again up to retries more times when the
+	 * connection could not be made. Once a request may have reached the
+	 * server (an error status, a reset or a read timeout) it is not sent
+	 * again, since a POST is not safe to repeat. The events of the retried
+	 * attempts carry their attempt number.
+	 */
+	public String post(String path, String content, int retries) throws IOException
+	{
+		for (int attempt = 0;; attempt++)
+		{
+			try
+			{
+				return exchange(open(path, "POST"), path, content, attempt);
+			}
+			catch (NotSentException e)
+			{
+				if (attempt >= retries)
+				{
+					throw e;
+				}
+			}
+		}
+	}
+
+	/** The connection failed, so the server never saw the request. */
+	public static class NotSentException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		NotSentException(String message, IOException cause)
+		{
+			super(message, cause);
+		}
+	}
+
+	/** The server answered with an error status. */
+	public static class StatusException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int status;
+
+		StatusException(int status, String message)
+		{
+			super(message);
+			this.status = status;
+		}
+
+		public int getStatus()
+		{
+			return status;
+		}
+	}
+
+	public String delete(String path) throws IOException
+	{
+		return exchange(open(path, "DELETE"), path, null, 0);
+	}
+
+	/**
+	 * Sends content (if any), reads the response and, when capture is on,
+	 * appends the whole exchange to the traffic log. A /login response sets
+	 * the session cookie.
+	 */
+	private String exchange(HttpURLConnection conn, String path, String content, int attempt) throws IOException
+	{
+		TrafficLog log = TrafficLog.capture();
+		VisionRequestEvent event = new VisionRequestEvent();
+		event.begin();
+		long startMicros = System.currentTimeMillis() * 1000;
+		long start = System.nanoTime();
+		byte[] plain = content != null ? content.getBytes("UTF-8") : null;
+		byte[] body = plain;
+		if (plain != null && requestEncoding != null && plain.length >= MIN_COMPRESSED_BODY)
+		{
+			body = ContentCoding.encode(plain, requestEncoding);
+			conn.setRequestProperty("Content-Encoding", requestEncoding);
+		}
+		String response = null;
+		int status = 0;
+		try
+		{
+			if (body != null)
+			{
+				conn.setDoOutput(true);
+				conn.setFixedLengthStreamingMode(body.length);
+			}
+			long mark = System.nanoTime();
+			try
+			{
+				conn.connect();
+			}
+			catch (IOException e)
+			{
+				throw new NotSentException("Could not connect to " + server + ": " + e.getMessage(), e);
+			}
+			event.connect = System.nanoTime() - mark;
+			if (body != null)
+			{
+				mark = System.nanoTime();
+				write(conn, body);
+				event.write = System.nanoTime() - mark;
+			}
+			mark = System.nanoTime();
+			status = conn.getResponseCode();
+			event.waitForResponse = System.nanoTime() - mark;
+			if ("/login".equals(path))
+			{
+				List<String> values = null;
+				for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet())
+				{
+					// header names are case-insensitive; not every server writes Set-Cookie
+					if ("Set-Cookie".equalsIgnoreCase(header.getKey()))
+					{
+						values = header.getValue();
+					}
+				}
+				if (values == null || values.isEmpty())
+				{
+					throw new IOException("Login to " + server + " returned no cookie (HTTP " + status + ")");
+				}
+				cookie = values.get(0).split(";")[0];
+			}
+			mark = System.nanoTime();
+			response = read(conn);
+			event.read = System.nanoTime() - mark;
+			return response;
+		}
+		finally
+		{
+			conn.disconnect();
+			event.end();
+			if (event.shouldCommit())
+			{
+				event.method = conn.getRequestMethod();
+				event.endpoint = endpoint(path);
+				event.status = status;
+				event.requestBytes = body != null ? body.length : 0;
+				event.responseBytes = conn.getContentLengthLong();
+				if (event.responseBytes < 0 && response != null)
+				{
+					// chunked: the characters read are close enough for XML
+					event.responseBytes = response.length();
+				}
+				event.contentEncoding = conn.getContentEncoding();
+				event.retry = attempt;
+				event.commit();
+			}
+			if (log != null)
+			{
+				TrafficLog.Entry e = new TrafficLog.Entry();
+				e.startMicros = startMicros;
+				e.durationMicros = (int) ((System.nanoTime() - start) / 1000);
+				e.session = session;
+				e.thread = Thread.currentThread().getId();
+				e.method = conn.getRequestMethod();
+				e.path = path;
+				e.status = status;
+				// login bodies carry the password; replay logs in from its own file
+				if (plain != null && !"/login".equals(path)) e.request = plain;
+				if (response != null) e.response = response.getBytes("UTF-8");
+				log.append(e);
+			}
+		}
+	}
+
+	/**
+	 * Splits a whole URL, the way httprequests and RulesRequests are given
+	 * them, into the server a client is made for and the path it is passed.
+	 */
+	public static String[] split(String url) throws MalformedURLException
+	{
+		URL u = new URL(url);
+		return new String[] { u.getProtocol() + "://" + u.getAuthority(), u.getFile() };
+	}
+
+	/** The path with ids folded to {id} and the query dropped, for grouping. */
+	public static String endpoint(String path)
+	{
+		return path.replaceAll("[0-9a-f]{24}", "{id}").replaceFirst("\\?.*", "");
+	}
+
+	/**
+	 * Opens a GET for a response too big to hold as a String. The caller
+	 * reads and closes the stream.
+	 */
+	public InputStream stream(String path) throws IOException
+	{
+		return transfer("GET", path).stream();
+	}
+
+	/**
+	 * Starts a request whose headers and body the caller handles: uploads
+	 * too big for post(), and downloads that need the response headers or
+	 * the body as it was encoded. Close it when done.
+	 */
+	public Transfer transfer(String method, String path) throws IOException
+	{
+		return new Transfer(method, path);
+	}
+
+	/**
+	 * One request made through transfer(). It carries the session cookie
+	 * and Accept-Encoding like any other, and emits its event and capture
+	 * entry once the response headers are in; the bodies are the caller's,
+	 * so read time is not in the event and neither body is captured.
+	 */
+	public class Transfer
+	{
+		private final HttpURLConnection conn;
+
+		private final String path;
+
+		private final VisionRequestEvent event = new VisionRequestEvent();
+
+		private final long startMicros = System.currentTimeMillis() * 1000;
+
+		private final long start = System.nanoTime();
+
+		private long bodyStarted;
+
+		private long sent;
+
+		private int status = -1;
+
+		Transfer(String method, String path) throws IOException
+		{
+			this.conn = open(path, method);
+			this.path = path;
+			event.begin();
+		}
+
+		/** Sets a request header, replacing the client's own; call before body() or status(). */
+		public void setHeader(String name, String value)
+		{
+			conn.setRequestProperty(name, value);
+		}
+
+		/**
+		 * Connects and returns the request body, sent chunked. The caller
+		 * closes it before asking for the status.
+		 */
+		public OutputStream body(int chunk) throws IOException
+		{
+			conn.setDoOutput(true);
+			conn.setChunkedStreamingMode(chunk);
+			connect();
+			bodyStarted = System.nanoTime();
+			return new FilterOutputStream(conn.getOutputStream())
+			{
+				public void write(int b) throws IOException
+				{
+					out.write(b);
+					sent++;
+				}
+
+				public void write(byte[] b, int off, int len) throws IOException
+				{
+					out.write(b, off, len);
+					sent += len;
+				}
+			};
+		}
+
+		/** Sends the request if body() has not, and returns the response status. */
+		public int status() throws IOException
+		{
+			if (status >= 0)
+			{
+				return status;
+			}
+			if (bodyStarted == 0)
+			{
+				connect();
+			}
+			else
+			{
+				event.write = System.nanoTime() - bodyStarted;
+			}
+			long mark = System.nanoTime();
+			try
+			{
+				status = conn.getResponseCode();
+				event.waitForResponse = System.nanoTime() - mark;
+			}
+			finally
+			{
+				record(Math.max(status, 0));
+			}
+			return status;
+		}
+
+		public String header(String name) throws IOException
+		{
+			status();
+			return conn.getHeaderField(name);
+		}
+
+		public String contentEncoding() throws IOException
+		{
+			status();
+			return conn.getContentEncoding();
+		}
+
+		public long contentLength() throws IOException
+		{
+			status();
+			return conn.getContentLengthLong();
+		}
+
+		/**
+		 * The response body as the server sent it, still encoded. A status
+		 * of 400 or more is thrown as a StatusException.
+		 */
+		public InputStream rawStream() throws IOException
+		{
+			if (status() >= 400)
+			{
+				read(conn);
+			}
+			return conn.getInputStream();
+		}
+
+		/** The response body, decoded. */
+		public InputStream stream() throws IOException
+		{
+			return ContentCoding.decode(rawStream(), conn.getContentEncoding());
+		}
+
+		/** The whole response body as text, like get() and post() return it. */
+		public String text() throws IOException
+		{
+			status();
+			return read(conn);
+		}
+
+		public void close()
+		{
+			conn.disconnect();
+		}
+
+		private void connect() throws IOException
+		{
+			long mark = System.nanoTime();
+			try
+			{
+				conn.connect();
+			}
+			catch (IOException e)
+			{
+				record(0);
+				throw new NotSentException("Could not connect to " + server + ": " + e.getMessage(), e);
+			}
+			event.connect = System.nanoTime() - mark;
+		}
+
+		private void record(int code)
+		{
+			event.end();
+			if (event.shouldCommit())
+			{
+				event.method = conn.getRequestMethod();
+				event.endpoint = endpoint(path);
+				event.status = code;
+				event.requestBytes = sent;
+				event.responseBytes = code > 0 ? conn.getContentLengthLong() : -1;
+				event.contentEncoding = code > 0 ? conn.getContentEncoding() : null;
+				event.commit();
+			}
+			TrafficLog log = TrafficLog.capture();
+			if (log != null)
+			{
+				TrafficLog.Entry e = new TrafficLog.Entry();
+				e.startMicros = startMicros;
+				e.durationMicros = (int) ((System.nanoTime() - start) / 1000);
+				e.session = session;
+				e.thread = Thread.currentThread().getId();
+				e.method = conn.getRequestMethod();
+				e.path = path;
+				e.status = code;
+				log.append(e);
+			}
+		}
+	}
+
+	/**
+	 * GETs path and parses the response as it arrives, without holding the
+	 * body as a String first.
+	 */
+	public Document getDocument(String path) throws IOException
+	{
+		InputStream in = stream(path);
+		try
+		{
+			return parse(in, "GET " + endpoint(path));
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private HttpURLConnection open(String path, String method) throws IOException
+	{
+		URL url = new URL(server + path);
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestMethod(method);
+		conn.setRequestProperty("Referer", server + "/Vision.swf/[[DYNAMIC]]/6");
+		conn.setRequestProperty("Content-Type", "application/xml");
+		if (cookie != null)
+		{
+			conn.setRequestProperty("Cookie", cookie);
+		}
+		if (acceptEncoding != null && acceptEncoding.length() > 0 && !"identity".equals(acceptEncoding))
+		{
+			conn.setRequestProperty("Accept-Encoding", acceptEncoding);
+		}
+		conn.setDoInput(true);
+		return conn;
+	}
+
+	private static void write(HttpURLConnection conn, byte[] body) throws IOException
+	{
+		OutputStream out = conn.getOutputStream();
+		try
+		{
+			out.write(body);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the whole response. A status of 400 or more is thrown as an
+	 * IOException after the error body has been drained, so the socket can
+	 * go back to the keep-alive pool.
+	 */
+	private static String read(HttpURLConnection conn) throws IOException
+	{
+		int code = conn.getResponseCode();
+		InputStream stream = ContentCoding.decode(code >= 400 ? conn.getErrorStream() : conn.getInputStream(), conn.getContentEncoding());
+		StringBuffer response = new StringBuffer();
+		if (stream != null)
+		{
+			BufferedReader in = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+			try
+			{
+				char[] buf = new char[8192];
+				int n;
+				while ((n = in.read(buf)) > 0)
+				{
+					response.append(buf, 0, n);
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		if (code >= 400)
+		{
+			throw new StatusException(code, "HTTP " + code + " from " + conn.getURL() + ": " + response);
+		}
+		return response.toString();
+	}
+
+	public static Document parse(String xml) throws IOException
+	{
+		return parse(xml, "VisionClient");
+	}
+
+	/** Parses xml, recording a VisionParseEvent attributed to caller. */
+	public static Document parse(String xml, String caller) throws IOException
+	{
+		VisionParseEvent event = new VisionParseEvent();
+		event.begin();
+		try
+		{
+			DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			return db.parse(new InputSource(new StringReader(xml)));
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Unparseable response: " + xml, e);
+		}
+		finally
+		{
+			event.end();
+			if (event.shouldCommit())
+			{
+				event.caller = caller;
+				event.characters = xml.length();
+				event.commit();
+			}
+		}
+	}
+
+	/** Parses straight from a (decoding) response stream; the caller closes it. */
+	public static Document parse(InputStream in, String caller) throws IOException
+	{
+		VisionParseEvent event = new VisionParseEvent();
+		event.begin();
+		try
+		{
+			DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			return db.parse(in);
+		}
+		catch (IOException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Unparseable response from " + caller, e);
+		}
+		finally
+		{
+			event.end();
+			if (event.shouldCommit())
+			{
+				event.caller = caller;
+				// the length is not known when parsing from a stream
+				event.characters = 0;
+				event.commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,24 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event around building a DOM from a response, so parse
+ * time shows up separately from the request that fetched the XML.
+ */
+@Name("vision.Parse")
+@Label("Vision Response Parse")
+@Category({ "Vision", "Client" })
+@Description("DOM parse of a Vision XML response")
+@StackTrace(false)
+public class VisionParseEvent extends jdk.jfr.Event
+{
+	@Label("Caller")
+	public String caller;
+
+	@Label("Characters")
+	@Description("Length of the parsed XML; 0 when it was parsed from a stream")
+	public long characters;
+}
@@ -0,0 +1,66 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for one VisionClient request. The event's own
+ * duration is the whole exchange; the phase fields split it into connect,
+ * body write, waiting for the response headers (server think time plus the
+ * network) and reading the body. Ids in the path are folded to {id} so
+ * events group by endpoint.
+ */
+@Name("vision.Request")
+@Label("Vision Request")
+@Category({ "Vision", "Client" })
+@Description("One request made through VisionClient")
+@StackTrace(false)
+public class VisionRequestEvent extends jdk.jfr.Event
+{
+	@Label("Method")
+	public String method;
+
+	@Label("Endpoint")
+	public String endpoint;
+
+	@Label("Status")
+	public int status;
+
+	@Label("Request Bytes")
+	@Description("Bytes on the wire, after any compression")
+	@DataAmount
+	public long requestBytes;
+
+	@Label("Response Bytes")
+	@DataAmount
+	public long responseBytes;
+
+	@Label("Content Encoding")
+	@Description("Encoding of the response body; null when it was sent plain")
+	public String contentEncoding;
+
+	@Label("Connect")
+	@Description("Opening the connection; close to zero when a kept-alive socket is reused")
+	@Timespan(Timespan.NANOSECONDS)
+	public long connect;
+
+	@Label("Write")
+	@Timespan(Timespan.NANOSECONDS)
+	public long write;
+
+	@Label("Wait")
+	@Description("From the end of the request body to the response headers")
+	@Timespan(Timespan.NANOSECONDS)
+	public long waitForResponse;
+
+	@Label("Read")
+	@Timespan(Timespan.NANOSECONDS)
+	public long read;
+
+	@Label("Retry")
+	@Description("0 for the first attempt, 1 for the first retry, and so on")
+	public int retry;
+}
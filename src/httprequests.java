@@ -2,11 +2,8 @@ import java.net.*;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.io.*;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
@@ -18,11 +15,10 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 public class httprequests 
 {
-	private static String cookie;
+	private static VisionClient client;
 	
 	private static String Vijay2 = "301B-1038-33672";
 	private static String Vijay2Tag = "105463710599";
@@ -104,22 +100,31 @@ public class httprequests
 
     }
     
+  /**
+   * The helpers below take whole URLs but all go through this one
+   * VisionClient, so a provisioning run emits the same vision.Request and
+   * vision.Parse events as the load tools and JfrSummary can break it down.
+   */
+  private static VisionClient client(String target) throws IOException
+  {
+	  String origin = VisionClient.split(target)[0];
+	  if (client == null || !client.getServer().equals(origin))
+	  {
+		  client = new VisionClient(origin);
+	  }
+	  return client;
+  }
+
+  private static String path(String target) throws IOException
+  {
+	  return VisionClient.split(target)[1];
+  }
+    
   public static void readAssets(String url)
     {
     	try
     	{
-            URL vision = new URL(url);
-            URLConnection yc = vision.openConnection();
-            yc.setRequestProperty("X-Vision-REST-Method", "PUT");
-            yc.setRequestProperty("Cookie", cookie);
-            BufferedReader in = new BufferedReader(
-                                    new InputStreamReader(
-                                    yc.getInputStream()));
-            String inputLine;
-
-            while ((inputLine = in.readLine()) != null) 
-                System.out.println(inputLine);
-            in.close();
+            System.out.println(client(url).get(path(url)));
     	}
     	catch (Exception e)
     	{
@@ -131,63 +136,9 @@ public class httprequests
   {
     	try
     	{
-            BufferedReader in = new BufferedReader(new FileReader(filepath));
-            StringBuffer strbuffer = new StringBuffer();
-            String str;
-            while ((str = in.readLine()) != null) 
-            {
-                strbuffer.append(str);
-            }
-            //System.out.println("the data from file is : "+strbuffer);
-            in.close();
-            String content = strbuffer.toString();
-        	System.out.println("About to post\nURL: "+target+ "\ncontent: " + content);
-        	  StringBuffer response = new StringBuffer();
-        	  URL url = new URL(target);
-        	  HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-        	  
-        	  conn.setRequestMethod("POST");
-        	  conn.setRequestProperty("X-Vision-REST-Method", "PUT");
-        	  
-        	  conn.setRequestProperty("Content-Type", "application/xml");
-        	  conn.setRequestProperty( "User-Agent", "Mozilla/4.0" );
-        	  conn.setRequestProperty("Content-Length", content.length()+"");
-
-        	  
-        	  conn.setDoInput (true);
-        	  conn.setDoOutput (true);
-
-        	  conn.connect();
-
-        	  DataOutputStream out = new DataOutputStream (conn.getOutputStream ());
-        	  // Write out the bytes of the content string to the stream.
-        	  out.writeBytes(content);
-        	  out.flush();
-        	  out.close();
-        	  
-        	  
-        	  // Read response from the input stream.
-        	  Map<String, List<String>> headers = conn.getHeaderFields(); 
-        	  
-        	  
-        	  List<String> values = headers.get("Set-Cookie"); 
-        	  
-        	  String cookieVal = values.get(0);
-        	 //System.out.println("cookieval : "+cookieVal);
-        	  
-        	  cookie = cookieVal.split(";")[0];
-        	  
-        	  //System.out.println("cookie is : "+cookie);
-        	  
-        	  BufferedReader in1 = new BufferedReader (new InputStreamReader(conn.getInputStream ()));
-        	  String temp;
-        	  while ((temp = in1.readLine()) != null){
-        	    response.append(temp);
-        	   }
-        	  temp = null;
-        	  in1.close ();
-        	  System.out.println("Server response:\n'" + response.toString() + "'");
-        	 
+        	System.out.println("About to log in\nURL: "+target);
+        	client(target).login(filepath);
+        	System.out.println("Logged in to "+client.getServer());
     	}
     	catch(Exception e)
     	{
@@ -211,12 +162,7 @@ public class httprequests
             in.close();
             String content = strbuffer.toString();
             
-  		  DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		  DocumentBuilder db = dbf.newDocumentBuilder();
-		  InputSource inStream = new org.xml.sax.InputSource();
-		    
-		  inStream.setCharacterStream(new java.io.StringReader(content));
-		  Document doc = db.parse(inStream);
+		  Document doc = VisionClient.parse(content, "httprequests.postAssets");
 		  Element root = doc.getDocumentElement();
 		  System.out.println("the root elements is : "+root);
 		  NodeList propertyList = root.getElementsByTagName("property");
@@ -239,38 +185,9 @@ public class httprequests
 		  
 		  
         	System.out.println("About to post\nURL: "+target+ "\ncontent: " + content);
-        	  StringBuffer response = new StringBuffer();
-        	  URL url = new URL(target);
-        	  HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-        	  
-        	  conn.setRequestMethod("POST");
-        	  //conn.setRequestProperty("X-Vision-REST-Method", "PUT");
-        	  conn.setRequestProperty("Referer",server+"/Vision.swf/[[DYNAMIC]]/6");
-        	  
-        	  conn.setRequestProperty("Content-Type", "application/xml");
-        	  conn.setRequestProperty("Cookie", cookie);
-        	  //conn.setRequestProperty( "User-Agent", "Mozilla/4.0" );
-        	  conn.setRequestProperty("Content-Length", content.length()+"");
-        	  conn.setDoInput (true);
-        	  conn.setDoOutput (true);
-        	  conn.connect();
-
-        	  DataOutputStream out = new DataOutputStream (conn.getOutputStream ());
-        	  // Write out the bytes of the content string to the stream.
-        	  out.writeBytes(content);
-        	  out.flush();
-        	  out.close();
-        	  
-        	  BufferedReader in1 = new BufferedReader (new InputStreamReader(conn.getInputStream ()));
-        	  String temp;
-        	  while ((temp = in1.readLine()) != null)
-        	  {
-        	    response.append(temp);
-        	  }
-        	  temp = null;
-        	  in1.close ();
-        	  System.out.println("Server response:\n'" + response.toString() + "'");
-        	  extractAssetId(response.toString());
+        	  String response = client(target).post(path(target), content);
+        	  System.out.println("Server response:\n'" + response + "'");
+        	  extractAssetId(response);
         	 
     	}
     	catch(Exception e)
@@ -287,42 +204,9 @@ public class httprequests
 
             String content = "<search text=\""+tagSN+"\"/>";
         	System.out.println("About to post\nURL: "+target+ "\ncontent: " + content);
-			  StringBuffer response = new StringBuffer();
-			  URL url = new URL(target);
-			  HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-			  
-			  conn.setRequestMethod("POST");
-			  //conn.setRequestProperty("X-Vision-REST-Method", "PUT");
-			  conn.setRequestProperty("Referer",server+"/Vision.swf/[[DYNAMIC]]/6");
-			  conn.setRequestProperty("Content-Type", "application/xml");
-			  conn.setRequestProperty("Cookie", cookie);
-			  //conn.setRequestProperty( "User-Agent", "Mozilla/4.0" );
-			  conn.setRequestProperty("Content-Length", content.length()+"");
-			  conn.setDoInput (true);
-			  conn.setDoOutput (true);
-			  conn.connect();
-
-        	  DataOutputStream out = new DataOutputStream (conn.getOutputStream ());
-        	  // Write out the bytes of the content string to the stream.
-        	  out.writeBytes(content);
-        	  out.flush();
-        	  out.close();
-        	  
-        	  BufferedReader in1 = new BufferedReader (new InputStreamReader(conn.getInputStream ()));
-        	  String temp;
-        	  while ((temp = in1.readLine()) != null)
-        	  {
-        	    response.append(temp);
-        	  }
-        	  temp = null;
-        	  in1.close ();
-        	  System.out.println("Server response for tags:\n'" + response.toString() + "'");
-    		  DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    		  DocumentBuilder db = dbf.newDocumentBuilder();
-    		  InputSource inStream = new org.xml.sax.InputSource();
-    		    
-    		  inStream.setCharacterStream(new java.io.StringReader(response.toString()));
-    		  Document doc = db.parse(inStream);
+			  String response = client(target).post(path(target), content);
+        	  System.out.println("Server response for tags:\n'" + response + "'");
+    		  Document doc = VisionClient.parse(response, "httprequests.searchTag");
     		  Element root = doc.getDocumentElement();
     		  System.out.println("the root elements is : "+root);
     		  NodeList tagElement = root.getElementsByTagName("tag");
@@ -340,12 +224,7 @@ public class httprequests
   {
 	  try
 	  {
-		  DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		  DocumentBuilder db = dbf.newDocumentBuilder();
-		  InputSource inStream = new org.xml.sax.InputSource();
-		    
-		  inStream.setCharacterStream(new java.io.StringReader(response));
-		  Document doc = db.parse(inStream);
+		  Document doc = VisionClient.parse(response, "httprequests.extractAssetId");
 		  Element root = doc.getDocumentElement();
 
 		  newAssetId = root.getAttribute("id");
@@ -361,25 +240,11 @@ public class httprequests
   {
   	try
 	{
-        URL vision = new URL(url);
-        URLConnection yc = vision.openConnection();
-        yc.setRequestProperty("X-Vision-REST-Method", "PUT");
-        yc.setRequestProperty("Cookie", cookie);
-        BufferedReader in = new BufferedReader( new InputStreamReader(yc.getInputStream()));
-        
-        StringBuffer tagsXml = new StringBuffer();
-        String inputLine;
-
-        while ((inputLine = in.readLine()) != null) 
-            tagsXml.append(inputLine);
-        in.close();
-        System.out.println("the tagsxml is : "+tagsXml.toString());
-		  DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		  DocumentBuilder db = dbf.newDocumentBuilder();
-		  InputSource inStream = new org.xml.sax.InputSource();
-		    
-		  inStream.setCharacterStream(new java.io.StringReader(tagsXml.toString()));
-		  Document doc = db.parse(inStream);
+        String tagsXml = client(url).get(path(url));
+        System.out.println("the tagsxml is : "+tagsXml);
+        // the list is what the server has free now, not every tag ever seen
+        freeTags.clear();
+		  Document doc = VisionClient.parse(tagsXml, "httprequests.getTags");
 		  Element root = doc.getDocumentElement();
 		  System.out.println("the root elements is : "+root);
 		  NodeList tagElements = root.getElementsByTagName("tag");
@@ -406,37 +271,8 @@ public class httprequests
     	{
 
         	System.out.println("About to post\nURL: "+target+ "\ncontent: " + content);
-        	  StringBuffer response = new StringBuffer();
-        	  URL url = new URL(target);
-        	  HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-        	  
-        	  conn.setRequestMethod("POST");
-        	  //conn.setRequestProperty("X-Vision-REST-Method", "PUT");
-        	  conn.setRequestProperty("Referer",server+"/Vision.swf/[[DYNAMIC]]/6");
-        	  
-        	  conn.setRequestProperty("Content-Type", "application/xml");
-        	  conn.setRequestProperty("Cookie", cookie);
-        	  //conn.setRequestProperty( "User-Agent", "Mozilla/4.0" );
-        	  conn.setRequestProperty("Content-Length", content.length()+"");
-        	  conn.setDoInput (true);
-        	  conn.setDoOutput (true);
-        	  conn.connect();
-
-        	  DataOutputStream out = new DataOutputStream (conn.getOutputStream ());
-        	  // Write out the bytes of the content string to the stream.
-        	  out.writeBytes(content);
-        	  out.flush();
-        	  out.close();
-        	  
-        	  BufferedReader in1 = new BufferedReader (new InputStreamReader(conn.getInputStream ()));
-        	  String temp;
-        	  while ((temp = in1.readLine()) != null)
-        	  {
-        	    response.append(temp);
-        	  }
-        	  temp = null;
-        	  in1.close ();
-        	  System.out.println("Server response:\n'" + response.toString() + "'");
+        	  String response = client(target).post(path(target), content);
+        	  System.out.println("Server response:\n'" + response + "'");
 
     	}
     	catch(Exception e)
@@ -444,4 +280,4 @@ public class httprequests
     		e.printStackTrace();
     	}
   }
-}
\ No newline at end of file
+}